@@ -0,0 +1,713 @@
+package websocket;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Supplier;
+
+/**
+ * Conformance cases of RFC 6455, modeled on the Autobahn test suite, run against a local
+ * echo server in the same JVM, and a fuzzer of the frame parser.
+ *
+ * The cases cover framing, pings, reserved bits and opcodes, fragmentation, UTF-8 and
+ * the closing handshake. The fuzzer sends random frames split at random read boundaries,
+ * first straight to FrameCodec.decode and then through a socket to the server, checking
+ * that every frame comes back exactly as it was sent. Then it sends broken input (valid
+ * messages with flipped bits or cut short, and random bytes), checking that the server
+ * ends each connection, with 1002, 1007 or 1009 when it closes it, and never fails.
+ *
+ * Run it after any change in the read or write path:
+ *
+ * java websocket.ConformanceSuite [fuzz iterations] [seed]
+ *
+ * It prints each case and exits with 1 if any of them fails.
+ */
+public class ConformanceSuite {
+
+	private static final int TEXT = 1, BINARY = 2, CLOSE = 8, PING = 9, PONG = 10;
+	private static final int NO_STATUS = -1;
+	// bigger than any frame echoed by the server
+	private static final int RECEIVE_BUFFER_SIZE = 256 * 1024;
+
+	/**
+	 * A frame expected from the server.
+	 */
+	private static class Expected {
+		final int opcode;
+		final byte[] payload;
+		final int statusCode;
+
+		Expected(int opcode, byte[] payload, int statusCode) {
+			this.opcode = opcode;
+			this.payload = payload;
+			this.statusCode = statusCode;
+		}
+
+		boolean matches(FrameCodec.Frame frame) {
+			if (frame.getOpcodeValue() != this.opcode || !frame.isFin())
+				return false;
+			if (this.opcode == CLOSE)
+				return this.statusCode == statusCode(frame.getPayload());
+			return Arrays.equals(this.payload, frame.getPayload());
+		}
+
+		@Override
+		public String toString() {
+			return describe(this.opcode, this.payload);
+		}
+	}
+
+	/**
+	 * A frame given to the parser by the fuzzer.
+	 */
+	private static class SentFrame {
+		final boolean fin;
+		final int opcode;
+		final byte[] payload;
+
+		SentFrame(boolean fin, int opcode, byte[] payload) {
+			this.fin = fin;
+			this.opcode = opcode;
+			this.payload = payload;
+		}
+	}
+
+	private static class Case {
+		final String name;
+		final byte[][] frames;
+		final Expected[] expected;
+
+		Case(String name, byte[][] frames, Expected... expected) {
+			this.name = name;
+			this.frames = frames;
+			this.expected = expected;
+		}
+	}
+
+	private final int port;
+	private final Random random;
+	private int passed, failed;
+
+	private ConformanceSuite(int port, long seed) {
+		this.port = port;
+		this.random = new Random(seed);
+	}
+
+	public static void main(String[] args) throws Exception {
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		long seed = args.length > 1 ? Long.parseLong(args[1]) : System.nanoTime();
+
+		final int[] port = new int[1];
+		final JWebSocketRouter router = new JWebSocketRouter() {
+			@Override
+			protected void onServerStarted(ServerSocket server) {
+				synchronized (port) {
+					port[0] = server.getLocalPort();
+					port.notifyAll();
+				}
+			}
+		};
+		router.route("/", new Supplier<JWebSocket>() {
+			@Override
+			public JWebSocket get() {
+				return new EchoServer();
+			}
+		});
+		Thread server = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					router.start(0);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}, "ConformanceSuite-server");
+		server.setDaemon(true);
+		server.start();
+		synchronized (port) {
+			while (port[0] == 0)
+				port.wait();
+		}
+
+		System.out.println("Seed: " + seed);
+		ConformanceSuite suite = new ConformanceSuite(port[0], seed);
+		for (Case c : cases())
+			suite.run(c);
+		suite.fuzzParser(iterations);
+		suite.fuzzServer(Math.max(1, iterations / 50));
+		suite.fuzzMalformed(Math.max(1, iterations / 20), router);
+
+		router.shutdown(1000);
+		System.out.println(suite.passed + " passed, " + suite.failed + " failed");
+		System.exit(suite.failed == 0 ? 0 : 1);
+	}
+
+	private static List<Case> cases() {
+		List<Case> cases = new ArrayList<Case>();
+		byte[] b125 = bytes(125), b126 = bytes(126), b65535 = bytes(65535), b65536 = bytes(65536);
+
+		// 1 - framing
+		cases.add(new Case("1.1.1 text, empty", frames(frame(TEXT, new byte[0])), text("")));
+		cases.add(new Case("1.1.2 text, 125 bytes", frames(frame(TEXT, utf8(ascii(125)))), text(ascii(125))));
+		cases.add(new Case("1.1.3 text, 126 bytes", frames(frame(TEXT, utf8(ascii(126)))), text(ascii(126))));
+		cases.add(new Case("1.1.4 text, 65535 bytes", frames(frame(TEXT, utf8(ascii(65535)))), text(ascii(65535))));
+		cases.add(new Case("1.1.5 text, 65536 bytes", frames(frame(TEXT, utf8(ascii(65536)))), text(ascii(65536))));
+		cases.add(new Case("1.2.1 binary, 125 bytes", frames(frame(BINARY, b125)), binary(b125)));
+		cases.add(new Case("1.2.2 binary, 126 bytes", frames(frame(BINARY, b126)), binary(b126)));
+		cases.add(new Case("1.2.3 binary, 65535 bytes", frames(frame(BINARY, b65535)), binary(b65535)));
+		cases.add(new Case("1.2.4 binary, 65536 bytes", frames(frame(BINARY, b65536)), binary(b65536)));
+		cases.add(new Case("1.3.1 unmasked frame", frames(unmasked(TEXT, utf8(ascii(5)))), close(1002)));
+		cases.add(new Case("1.4.1 64-bit length with the MSB set", frames(header64(TEXT, 0x8000000000000005L)),
+				close(1002)));
+		cases.add(new Case("1.4.2 64-bit length, 1 TB", frames(header64(BINARY, 1L << 40)), close(1009)));
+
+		// 2 - pings and pongs
+		cases.add(new Case("2.1 ping, empty", frames(frame(PING, new byte[0])), pong(new byte[0])));
+		cases.add(new Case("2.2 ping, 125 bytes", frames(frame(PING, b125)), pong(b125)));
+		cases.add(new Case("2.3 ping, 126 bytes", frames(frame(PING, b126)), close(1002)));
+		cases.add(new Case("2.4 ping, fragmented", frames(frame(false, 0, PING, utf8(ascii(3)))), close(1002)));
+		cases.add(new Case("2.5 unsolicited pong", frames(frame(PONG, utf8(ascii(4))), frame(TEXT, utf8("after"))),
+				text("after")));
+		cases.add(new Case("2.6 ten pings", frames(frame(PING, utf8("0")), frame(PING, utf8("1")),
+				frame(PING, utf8("2")), frame(PING, utf8("3")), frame(PING, utf8("4")), frame(PING, utf8("5")),
+				frame(PING, utf8("6")), frame(PING, utf8("7")), frame(PING, utf8("8")), frame(PING, utf8("9"))),
+				pong(utf8("0")), pong(utf8("1")), pong(utf8("2")), pong(utf8("3")), pong(utf8("4")),
+				pong(utf8("5")), pong(utf8("6")), pong(utf8("7")), pong(utf8("8")), pong(utf8("9"))));
+
+		// 3 - reserved bits
+		cases.add(new Case("3.1 text, RSV1", frames(frame(true, 4, TEXT, utf8("rsv"))), close(1002)));
+		cases.add(new Case("3.2 text, RSV3", frames(frame(true, 1, TEXT, utf8("rsv"))), close(1002)));
+		cases.add(new Case("3.3 ping, RSV2", frames(frame(true, 2, PING, utf8("rsv"))), close(1002)));
+
+		// 4 - reserved opcodes
+		cases.add(new Case("4.1 opcode 3", frames(frame(3, utf8("x"))), close(1002)));
+		cases.add(new Case("4.2 opcode 7", frames(frame(7, utf8("x"))), close(1002)));
+		cases.add(new Case("4.3 opcode 11", frames(frame(11, utf8("x"))), close(1002)));
+		cases.add(new Case("4.4 opcode 15", frames(frame(15, utf8("x"))), close(1002)));
+
+		// 5 - fragmentation
+		cases.add(new Case("5.1 text, 3 fragments", frames(frame(false, 0, TEXT, utf8("frag")),
+				frame(false, 0, 0, utf8("men")), frame(true, 0, 0, utf8("ted"))), text("fragmented")));
+		cases.add(new Case("5.2 binary, 2 fragments", frames(frame(false, 0, BINARY, Arrays.copyOf(b126, 100)),
+				frame(true, 0, 0, Arrays.copyOfRange(b126, 100, 126))), binary(b126)));
+		cases.add(new Case("5.3 ping between fragments", frames(frame(false, 0, TEXT, utf8("one ")),
+				frame(PING, utf8("ping")), frame(true, 0, 0, utf8("two"))), pong(utf8("ping")), text("one two")));
+		cases.add(new Case("5.4 continuation without first fragment", frames(frame(true, 0, 0, utf8("x"))),
+				close(1002)));
+		cases.add(new Case("5.5 new message before the last fragment", frames(frame(false, 0, TEXT, utf8("a")),
+				frame(TEXT, utf8("b"))), close(1002)));
+		cases.add(new Case("5.6 text, 1 byte fragments", frames(frame(false, 0, TEXT, utf8("f")),
+				frame(false, 0, 0, utf8("r")), frame(false, 0, 0, utf8("a")), frame(false, 0, 0, utf8("g")),
+				frame(false, 0, 0, utf8("s")), frame(true, 0, 0, new byte[0])), text("frags")));
+		cases.add(new Case("5.7 close between fragments", frames(frame(false, 0, TEXT, utf8("a")),
+				frame(CLOSE, status(1000))), close(1000)));
+		cases.add(new Case("5.8 opcode 3 between fragments", frames(frame(false, 0, TEXT, utf8("a")),
+				frame(false, 0, 3, utf8("b")), frame(true, 0, 0, utf8("c"))), close(1002)));
+		cases.add(new Case("5.9 opcode 11 between fragments", frames(frame(false, 0, BINARY, utf8("a")),
+				frame(11, utf8("b")), frame(true, 0, 0, utf8("c"))), close(1002)));
+
+		// 6 - UTF-8
+		String kosme = "\u03ba\u1f79\u03c3\u03bc\u03b5";
+		byte[] kosmeBytes = utf8(kosme);
+		cases.add(new Case("6.1 valid UTF-8", frames(frame(TEXT, kosmeBytes)), text(kosme)));
+		cases.add(new Case("6.2 UTF-8 split between fragments", frames(frame(false, 0, TEXT,
+				Arrays.copyOf(kosmeBytes, 4)), frame(true, 0, 0, Arrays.copyOfRange(kosmeBytes, 4,
+						kosmeBytes.length))), text(kosme)));
+		cases.add(new Case("6.3 overlong encoding", frames(frame(TEXT, new byte[] { (byte) 0xC0, (byte) 0x80 })),
+				close(1007)));
+		cases.add(new Case("6.4 surrogate", frames(frame(TEXT, new byte[] { (byte) 0xED, (byte) 0xA0,
+				(byte) 0x80 })), close(1007)));
+		cases.add(new Case("6.5 truncated sequence", frames(frame(TEXT, new byte[] { 'a', (byte) 0xE2,
+				(byte) 0x82 })), close(1007)));
+		cases.add(new Case("6.6 invalid UTF-8 in fragments", frames(frame(false, 0, TEXT, utf8("ok")),
+				frame(true, 0, 0, new byte[] { (byte) 0xFF })), close(1007)));
+
+		// 7 - closing handshake
+		cases.add(new Case("7.1 close 1000", frames(frame(CLOSE, status(1000))), close(1000)));
+		cases.add(new Case("7.2 close, no status", frames(frame(CLOSE, new byte[0])), close(NO_STATUS)));
+		cases.add(new Case("7.3 close 1000 with reason", frames(frame(CLOSE, concat(status(1000), utf8("bye")))),
+				close(1000)));
+		cases.add(new Case("7.4 close 3000", frames(frame(CLOSE, status(3000))), close(3000)));
+		cases.add(new Case("7.5 close 4999", frames(frame(CLOSE, status(4999))), close(4999)));
+		cases.add(new Case("7.6 close, 1 byte payload", frames(frame(CLOSE, new byte[] { 3 })), close(1002)));
+		cases.add(new Case("7.7 close 999", frames(frame(CLOSE, status(999))), close(1002)));
+		cases.add(new Case("7.8 close 1005", frames(frame(CLOSE, status(1005))), close(1002)));
+		cases.add(new Case("7.9 close 1006", frames(frame(CLOSE, status(1006))), close(1002)));
+		cases.add(new Case("7.10 close 2999", frames(frame(CLOSE, status(2999))), close(1002)));
+		cases.add(new Case("7.11 close 5000", frames(frame(CLOSE, status(5000))), close(1002)));
+		cases.add(new Case("7.12 close, invalid UTF-8 reason", frames(frame(CLOSE, concat(status(1000),
+				new byte[] { (byte) 0xC0, (byte) 0x80 }))), close(1007)));
+		cases.add(new Case("7.13 text after close", frames(frame(CLOSE, status(1000)), frame(TEXT, utf8("late"))),
+				close(1000)));
+		return cases;
+	}
+
+	/**
+	 * Send the frames of the case in one write and check the frames received.
+	 */
+	private void run(Case c) {
+		try (Socket socket = this.connect()) {
+			OutputStream out = socket.getOutputStream();
+			out.write(concat(c.frames));
+			out.flush();
+
+			ByteBuffer received = ByteBuffer.allocate(RECEIVE_BUFFER_SIZE);
+			for (Expected expected : c.expected) {
+				FrameCodec.Frame frame = this.readMessage(socket, received);
+				if (frame == null || !expected.matches(frame)) {
+					this.fail(c.name, "expected " + expected + ", received "
+							+ (frame == null ? "nothing" : describe(frame.getOpcodeValue(), frame.getPayload())));
+					return;
+				}
+			}
+
+			Expected last = c.expected[c.expected.length - 1];
+			if (last.opcode == CLOSE && !this.closedByServer(socket, received)) {
+				this.fail(c.name, "the server didn't close the connection");
+				return;
+			}
+			this.pass(c.name);
+		} catch (IOException e) {
+			this.fail(c.name, e.toString());
+		}
+	}
+
+	/**
+	 * Encode random frames, split the bytes at random boundaries and check that the parser
+	 * gives back the same frames.
+	 */
+	private void fuzzParser(int iterations) {
+		long start = System.nanoTime(), frames = 0, bytes = 0;
+		for (int i = 0; i < iterations; i++) {
+			List<SentFrame> sent = new ArrayList<SentFrame>();
+			ByteArrayOutputStream stream = new ByteArrayOutputStream();
+			int count = 1 + this.random.nextInt(8);
+			for (int f = 0; f < count; f++) {
+				boolean fin = this.random.nextBoolean();
+				int opcode = this.random.nextInt(3);
+				byte[] payload = this.randomPayload();
+				byte[] frame = frame(fin, 0, opcode, payload);
+				stream.write(frame, 0, frame.length);
+				sent.add(new SentFrame(fin, opcode, payload));
+			}
+
+			byte[] data = stream.toByteArray();
+			// each read makes more bytes visible to the parser, in chunks of random size
+			ByteBuffer buffer = ByteBuffer.wrap(data);
+			buffer.limit(0);
+			List<FrameCodec.Frame> decoded = new ArrayList<FrameCodec.Frame>();
+			while (buffer.limit() < data.length) {
+				int chunk = 1 + this.random.nextInt(this.random.nextInt(4) == 0 ? 8 : 16384);
+				buffer.limit(Math.min(data.length, buffer.limit() + chunk));
+				FrameCodec.Frame frame;
+				while ((frame = FrameCodec.decode(buffer)) != null)
+					decoded.add(frame);
+			}
+
+			if (!sameFrames(sent, decoded) || buffer.hasRemaining()) {
+				this.fail("fuzz parser", "iteration " + i + ": " + sent.size() + " frames sent, " + decoded.size()
+						+ " decoded");
+				return;
+			}
+			frames += sent.size();
+			bytes += data.length;
+		}
+		this.pass(String.format("fuzz parser: %d frames, %.1f MB at %.0f frames/s", frames, bytes / 1048576.0,
+				frames / ((System.nanoTime() - start) / 1e9)));
+	}
+
+	/**
+	 * Send random messages to the echo server, fragmented at random and with pings in the
+	 * middle, writing the bytes in random chunks, and check every answer.
+	 */
+	private void fuzzServer(int rounds) {
+		long messages = 0;
+		try (Socket socket = this.connect()) {
+			OutputStream out = socket.getOutputStream();
+			ByteBuffer received = ByteBuffer.allocate(RECEIVE_BUFFER_SIZE);
+			for (int round = 0; round < rounds; round++) {
+				List<Expected> expected = new ArrayList<Expected>();
+				byte[] data = this.randomMessages(round, expected);
+				for (int position = 0; position < data.length;) {
+					int chunk = Math.min(data.length - position, 1 + this.random.nextInt(2048));
+					out.write(data, position, chunk);
+					out.flush();
+					position += chunk;
+				}
+
+				for (Expected e : expected) {
+					FrameCodec.Frame frame = this.readMessage(socket, received);
+					if (frame == null || !e.matches(frame)) {
+						this.fail("fuzz server", "round " + round + ": expected " + e + ", received "
+								+ (frame == null ? "nothing" : describe(frame.getOpcodeValue(), frame.getPayload())));
+						return;
+					}
+				}
+				messages += expected.size();
+			}
+		} catch (IOException e) {
+			this.fail("fuzz server", e.toString());
+			return;
+		}
+		// no rate here: it measures this client and the loopback more than the server
+		this.pass("fuzz server: " + messages + " messages and pongs");
+	}
+
+	/**
+	 * Random text and binary messages, fragmented at random, with pings between the fragments.
+	 * @param expected - receives the answers of the server, in order
+	 * @return the frames, as written to the socket
+	 */
+	private byte[] randomMessages(int round, List<Expected> expected) {
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		int count = 1 + this.random.nextInt(5);
+		for (int m = 0; m < count; m++) {
+			boolean text = this.random.nextBoolean();
+			byte[] payload = text ? utf8(ascii(this.randomPayload().length)) : this.randomPayload();
+			int fragments = 1 + this.random.nextInt(3);
+			for (int f = 0; f < fragments; f++) {
+				int from = payload.length * f / fragments, to = payload.length * (f + 1) / fragments;
+				byte[] frame = frame(f == fragments - 1, 0, f == 0 ? (text ? TEXT : BINARY) : 0,
+						Arrays.copyOfRange(payload, from, to));
+				stream.write(frame, 0, frame.length);
+				if (f == fragments - 1)
+					expected.add(text ? new Expected(TEXT, payload, 0) : binary(payload));
+				if (this.random.nextInt(4) == 0) {
+					byte[] ping = utf8("ping " + round + "." + m + "." + f);
+					byte[] pingFrame = frame(PING, ping);
+					stream.write(pingFrame, 0, pingFrame.length);
+					expected.add(pong(ping));
+				}
+			}
+		}
+		return stream.toByteArray();
+	}
+
+	/**
+	 * Send broken input, one connection for each round: valid messages with random bits
+	 * flipped, valid messages cut at a random byte, or random bytes. The output is shut down
+	 * after it, so the server sees the end of the stream. Whatever the server answers to
+	 * the frames that are still valid, it must end the connection in time, and a close frame
+	 * must have 1002, 1007 or 1009 (or echo a close frame created by the mutation). Nothing
+	 * can be printed to System.err (the server prints the exceptions it doesn't expect), and
+	 * no connection can be left open.
+	 */
+	private void fuzzMalformed(int rounds, JWebSocketRouter router) {
+		PrintStream err = System.err;
+		ByteArrayOutputStream errors = new ByteArrayOutputStream();
+		System.setErr(new PrintStream(errors, true));
+		int[] closes = new int[3];
+		try {
+			for (int round = 0; round < rounds; round++) {
+				byte[] data;
+				int kind = this.random.nextInt(3);
+				if (kind == 2) {
+					data = new byte[1 + this.random.nextInt(4096)];
+					this.random.nextBytes(data);
+				} else {
+					data = this.randomMessages(round, new ArrayList<Expected>());
+					if (kind == 0) {
+						for (int flips = 1 + this.random.nextInt(8); flips > 0; flips--)
+							data[this.random.nextInt(data.length)] ^= 1 << this.random.nextInt(8);
+					} else {
+						data = Arrays.copyOf(data, this.random.nextInt(data.length));
+					}
+				}
+
+				String problem = this.sendMalformed(data, closes);
+				if (problem == null && errors.size() > 0)
+					problem = "the server printed " + errors.toString("UTF-8").split("\n")[0].trim();
+				if (problem != null) {
+					this.fail("fuzz malformed", "round " + round + " (" + new String[] { "bits flipped", "cut short",
+							"random bytes" }[kind] + ", " + data.length + " bytes): " + problem);
+					return;
+				}
+			}
+
+			long deadline = System.currentTimeMillis() + 5000;
+			while (router.getConnectionCount() > 0 && System.currentTimeMillis() < deadline)
+				Thread.sleep(10);
+			if (router.getConnectionCount() > 0) {
+				this.fail("fuzz malformed", router.getConnectionCount() + " connections left open");
+				return;
+			}
+		} catch (IOException e) {
+			this.fail("fuzz malformed", e.toString());
+			return;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return;
+		} finally {
+			System.setErr(err);
+		}
+		this.pass(String.format("fuzz malformed: %d connections, closed with 1002: %d, 1007: %d, 1009: %d", rounds,
+				closes[0], closes[1], closes[2]));
+	}
+
+	/**
+	 * @param closes - counts the connections closed with 1002, 1007 and 1009
+	 * @return what went wrong, or null if the server ended the connection as expected
+	 */
+	private String sendMalformed(byte[] data, int[] closes) throws IOException {
+		try (Socket socket = this.connect()) {
+			try {
+				socket.getOutputStream().write(data);
+				socket.shutdownOutput();
+			} catch (IOException e) {
+				// the server can fail the connection before all of it is written
+			}
+
+			InputStream in = socket.getInputStream();
+			ByteBuffer received = ByteBuffer.allocate(RECEIVE_BUFFER_SIZE);
+			long deadline = System.currentTimeMillis() + 5000;
+			while (true) {
+				int read;
+				try {
+					read = in.read(received.array(), received.position(), received.remaining());
+				} catch (SocketTimeoutException e) {
+					if (System.currentTimeMillis() > deadline)
+						return "the connection is still open after 5s";
+					continue;
+				} catch (IOException e) {
+					// reset: the server closed the socket with bytes it didn't read
+					return null;
+				}
+				if (read == -1)
+					return null;
+				received.position(received.position() + read);
+
+				received.flip();
+				FrameCodec.Frame frame;
+				while ((frame = FrameCodec.decode(received)) != null) {
+					if (frame.getOpcodeValue() != CLOSE)
+						continue;
+					int status = statusCode(frame.getPayload());
+					if (status == 1002 || status == 1007 || status == 1009) {
+						closes[status == 1002 ? 0 : status == 1007 ? 1 : 2]++;
+					} else if (!(status == NO_STATUS || status == 1000 || status == 1001 || status == 1003
+							|| (status >= 1010 && status <= 1011) || (status >= 3000 && status <= 4999))) {
+						// anything else isn't the echo of a close frame created by the mutation
+						return "closed with " + status;
+					}
+				}
+				received.compact();
+				if (!received.hasRemaining())
+					received.clear();
+			}
+		}
+	}
+
+	private byte[] randomPayload() {
+		int kind = this.random.nextInt(20);
+		int length = kind < 14 ? this.random.nextInt(126) : kind < 19 ? 126 + this.random.nextInt(65536 - 126)
+				: 65536 + this.random.nextInt(65536);
+		byte[] payload = new byte[length];
+		this.random.nextBytes(payload);
+		return payload;
+	}
+
+	private Socket connect() throws IOException {
+		Socket socket = new Socket();
+		socket.setTcpNoDelay(true);
+		socket.setSoTimeout(2000);
+		socket.connect(new InetSocketAddress("localhost", this.port));
+		socket.getOutputStream().write(("GET / HTTP/1.1\r\nHost: localhost\r\nUpgrade: websocket\r\n"
+				+ "Connection: Upgrade\r\nSec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n"
+				+ "Sec-WebSocket-Version: 13\r\n\r\n").getBytes("UTF-8"));
+
+		// read the response byte by byte, so no frame is taken with it
+		InputStream in = socket.getInputStream();
+		StringBuilder response = new StringBuilder();
+		while (response.length() < 4 || !response.substring(response.length() - 4).equals("\r\n\r\n")) {
+			int b = in.read();
+			if (b == -1)
+				throw new IOException("Connection closed during the handshake");
+			response.append((char) b);
+		}
+		if (!response.toString().startsWith("HTTP/1.1 101"))
+			throw new IOException("Handshake refused: " + response.toString().split("\r\n")[0]);
+		return socket;
+	}
+
+	/**
+	 * Read the next frame, or the next message when it is sent in fragments (big messages
+	 * are fragmented by the server, see JWebSocketConfig outbound.fragmentSize).
+	 * @return the frame (one frame with the whole message when it is fragmented), or null if
+	 * the connection is closed or nothing arrives in time
+	 */
+	private FrameCodec.Frame readMessage(Socket socket, ByteBuffer received) throws IOException {
+		FrameCodec.Frame frame = this.readFrame(socket, received);
+		if (frame == null || frame.isFin() || frame.getOpcodeValue() >= 0x8)
+			return frame;
+
+		ByteArrayOutputStream message = new ByteArrayOutputStream();
+		message.write(frame.getPayload(), 0, frame.getPayload().length);
+		FrameCodec.Frame fragment;
+		do {
+			fragment = this.readFrame(socket, received);
+			// a control frame between the fragments is returned as it is, failing the case
+			if (fragment == null || fragment.getOpcodeValue() != 0)
+				return fragment;
+			message.write(fragment.getPayload(), 0, fragment.getPayload().length);
+		} while (!fragment.isFin());
+		return new FrameCodec.Frame(true, 0, frame.getOpcodeValue(), message.toByteArray(), null);
+	}
+
+	/**
+	 * @return the next frame, or null if the connection is closed or nothing arrives in time
+	 */
+	private FrameCodec.Frame readFrame(Socket socket, ByteBuffer received) throws IOException {
+		InputStream in = socket.getInputStream();
+		while (true) {
+			received.flip();
+			FrameCodec.Frame frame = FrameCodec.decode(received);
+			received.compact();
+			if (frame != null)
+				return frame;
+
+			try {
+				int read = in.read(received.array(), received.position(), received.remaining());
+				if (read == -1)
+					return null;
+				received.position(received.position() + read);
+			} catch (SocketTimeoutException e) {
+				return null;
+			}
+		}
+	}
+
+	private boolean closedByServer(Socket socket, ByteBuffer received) throws IOException {
+		try {
+			return received.position() == 0 && socket.getInputStream().read() == -1;
+		} catch (SocketTimeoutException e) {
+			return false;
+		}
+	}
+
+	private void pass(String name) {
+		this.passed++;
+		System.out.println("PASS " + name);
+	}
+
+	private void fail(String name, String reason) {
+		this.failed++;
+		System.out.println("FAIL " + name + " - " + reason);
+	}
+
+	private static boolean sameFrames(List<SentFrame> sent, List<FrameCodec.Frame> decoded) {
+		if (sent.size() != decoded.size())
+			return false;
+		for (int i = 0; i < sent.size(); i++) {
+			SentFrame a = sent.get(i);
+			FrameCodec.Frame b = decoded.get(i);
+			if (a.fin != b.isFin() || a.opcode != b.getOpcodeValue() || !Arrays.equals(a.payload, b.getPayload()))
+				return false;
+		}
+		return true;
+	}
+
+	private static byte[] frame(int opcode, byte[] payload) {
+		return frame(true, 0, opcode, payload);
+	}
+
+	/**
+	 * A masked client frame, possibly invalid (the RSV bits and the opcode are not checked).
+	 */
+	private static byte[] frame(boolean fin, int rsv, int opcode, byte[] payload) {
+		ByteBuffer frame = ByteBuffer.allocate(FrameCodec.headerSize(payload.length, true) + payload.length);
+		FrameCodec.encode(frame, payload, 0, payload.length, opcode, fin, 0x37FA213D);
+		byte[] bytes = frame.array();
+		bytes[0] |= rsv << 4;
+		return bytes;
+	}
+
+	/**
+	 * The header of a masked frame with a 64-bit payload length, without the payload.
+	 */
+	private static byte[] header64(int opcode, long length) {
+		ByteBuffer header = ByteBuffer.allocate(14);
+		header.put((byte) (0x80 | opcode));
+		header.put((byte) (0x80 | 127));
+		header.putLong(length);
+		header.putInt(0x37FA213D);
+		return header.array();
+	}
+
+	private static byte[] unmasked(int opcode, byte[] payload) {
+		ByteBuffer frame = ByteBuffer.allocate(FrameCodec.headerSize(payload.length, false) + payload.length);
+		FrameCodec.encode(frame, payload, 0, payload.length, opcode, true, null);
+		return frame.array();
+	}
+
+	private static byte[][] frames(byte[]... frames) {
+		return frames;
+	}
+
+	private static Expected text(String text) {
+		return new Expected(TEXT, utf8(text), 0);
+	}
+
+	private static Expected binary(byte[] data) {
+		return new Expected(BINARY, data, 0);
+	}
+
+	private static Expected pong(byte[] data) {
+		return new Expected(PONG, data, 0);
+	}
+
+	private static Expected close(int statusCode) {
+		return new Expected(CLOSE, null, statusCode);
+	}
+
+	private static int statusCode(byte[] payload) {
+		return payload.length < 2 ? NO_STATUS : ((payload[0] & 0xFF) << 8) | (payload[1] & 0xFF);
+	}
+
+	private static String describe(int opcode, byte[] payload) {
+		if (opcode == CLOSE)
+			return "close " + (payload == null ? "" : statusCode(payload));
+		return "opcode " + opcode + " with " + (payload == null ? 0 : payload.length) + " bytes";
+	}
+
+	private static byte[] status(int statusCode) {
+		return new byte[] { (byte) (statusCode >> 8), (byte) statusCode };
+	}
+
+	private static byte[] utf8(String text) {
+		return text.getBytes(java.nio.charset.StandardCharsets.UTF_8);
+	}
+
+	private static String ascii(int length) {
+		char[] chars = new char[length];
+		for (int i = 0; i < length; i++)
+			chars[i] = (char) ('a' + i % 26);
+		return new String(chars);
+	}
+
+	private static byte[] bytes(int length) {
+		byte[] data = new byte[length];
+		for (int i = 0; i < length; i++)
+			data[i] = (byte) i;
+		return data;
+	}
+
+	private static byte[] concat(byte[]... arrays) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (byte[] array : arrays)
+			out.write(array, 0, array.length);
+		return out.toByteArray();
+	}
+
+}
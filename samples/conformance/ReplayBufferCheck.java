@@ -0,0 +1,119 @@
+package websocket;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks of the ReplayBuffer ring: what framesAfter returns must be exactly the frames
+ * appended after the sequence, or null when some of them were discarded, also after the
+ * ring wraps around many times.
+ *
+ * java websocket.ReplayBufferCheck [rounds] [seed]
+ *
+ * It prints each check and exits with 1 if any of them fails.
+ */
+public class ReplayBufferCheck {
+
+	private int passed, failed;
+
+	public static void main(String[] args) {
+		int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+		long seed = args.length > 1 ? Long.parseLong(args[1]) : System.nanoTime();
+		System.out.println("Seed: " + seed);
+
+		ReplayBufferCheck check = new ReplayBufferCheck();
+		check.wrapTwice();
+		check.random(rounds, new Random(seed));
+		System.out.println(check.passed + " passed, " + check.failed + " failed");
+		System.exit(check.failed == 0 ? 0 : 1);
+	}
+
+	/**
+	 * After the second wrap the head is the oldest frame, past the write position, and a
+	 * newer frame is at the start of the ring, where the next frame is written.
+	 */
+	private void wrapTwice() {
+		ReplayBuffer buffer = new ReplayBuffer(16, 100, false);
+		List<byte[]> sent = new ArrayList<byte[]>();
+		int[] sizes = { 90, 10, 20, 85 };
+		for (int i = 0; i < sizes.length; i++) {
+			byte[] frame = frame(i + 1, sizes[i]);
+			buffer.append(i + 1, frame);
+			sent.add(frame);
+		}
+		this.compare("wrap twice", buffer, sent, 4);
+	}
+
+	/**
+	 * Random frame sizes and limits, checked against every frame appended.
+	 */
+	private void random(int rounds, Random random) {
+		for (int round = 0; round < rounds; round++) {
+			int maxMessages = 1 + random.nextInt(20), maxBytes = 16 + random.nextInt(500);
+			ReplayBuffer buffer = new ReplayBuffer(maxMessages, maxBytes, random.nextBoolean());
+			List<byte[]> sent = new ArrayList<byte[]>();
+			for (int sequence = 1; sequence <= 200; sequence++) {
+				byte[] frame = frame(sequence, 1 + random.nextInt(maxBytes * 2 / 3 + 1));
+				buffer.append(sequence, frame);
+				sent.add(frame);
+				if (!this.check(buffer, sent, sequence)) {
+					this.fail("random round " + round, "maxMessages " + maxMessages + ", maxBytes " + maxBytes
+							+ ", wrong frames after sequence " + sequence);
+					return;
+				}
+			}
+		}
+		this.pass("random: " + rounds + " rounds of 200 frames");
+	}
+
+	private void compare(String name, ReplayBuffer buffer, List<byte[]> sent, int lastSequence) {
+		if (this.check(buffer, sent, lastSequence))
+			this.pass(name);
+		else
+			this.fail(name, "wrong frames replayed");
+	}
+
+	/**
+	 * @return true if, for every sequence seen, framesAfter is null or the frames sent after it
+	 */
+	private boolean check(ReplayBuffer buffer, List<byte[]> sent, int lastSequence) {
+		boolean available = true;
+		for (int seen = lastSequence; seen >= 0; seen--) {
+			List<byte[]> frames = buffer.framesAfter(seen);
+			if (frames == null) {
+				available = false;
+				continue;
+			}
+			// once a frame is discarded, the older ones can't come back
+			if (!available || frames.size() != lastSequence - seen)
+				return false;
+			for (int i = 0; i < frames.size(); i++) {
+				if (!Arrays.equals(frames.get(i), sent.get(seen + i)))
+					return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return a frame filled with its sequence, so a frame overwritten by another is seen
+	 */
+	private static byte[] frame(int sequence, int size) {
+		byte[] frame = new byte[size];
+		Arrays.fill(frame, (byte) sequence);
+		return frame;
+	}
+
+	private void pass(String name) {
+		this.passed++;
+		System.out.println("PASS " + name);
+	}
+
+	private void fail(String name, String reason) {
+		this.failed++;
+		System.out.println("FAIL " + name + " - " + reason);
+	}
+
+}
@@ -0,0 +1,40 @@
+package websocket;
+
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * Echoes every text and binary message, the server of the samples under samples/conformance
+ * and samples/startup. Compile it with them:
+ *
+ * javac -cp [JWebSocket classes] samples/echo/EchoServer.java samples/conformance/ConformanceSuite.java
+ */
+public class EchoServer extends JWebSocket {
+
+	public EchoServer() {
+		super(false);
+	}
+
+	@Override
+	protected void onServerStarted(ServerSocket server) {
+	}
+
+	@Override
+	protected void clientConnected(Socket client) {
+	}
+
+	@Override
+	protected void clientDisconnected() {
+	}
+
+	@Override
+	protected void interpretClientTextMessage(String decoded_data) {
+		this.sendTextMessage(decoded_data);
+	}
+
+	@Override
+	protected void interpretClientBinaryMessage(byte[] decoded_data) {
+		this.sendBinaryMessage(decoded_data);
+	}
+
+}
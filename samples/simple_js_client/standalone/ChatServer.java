@@ -0,0 +1,62 @@
+package websocket;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.function.Supplier;
+
+/**
+ * The chat of the web sample without a servlet container: the router serves the page
+ * (WebContent/index.html) and the WebSocket /chat in the same port. Every message is
+ * sent to every connected client.
+ *
+ * java websocket.ChatServer [port] [WebContent directory]
+ *
+ * Then open http://127.0.0.1:32115/ in a few browser tabs.
+ */
+public class ChatServer {
+
+	public static void main(String[] args) throws IOException {
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : 32115;
+		File content = new File(args.length > 1 ? args[1] : "samples/simple_js_client/web/WebContent");
+
+		final JWebSocketRouter router = new JWebSocketRouter() {
+			@Override
+			protected void onServerStarted(ServerSocket server) {
+				System.out.println("Server started on http://127.0.0.1:" + server.getLocalPort() + "/");
+			}
+		};
+		router.setStaticDirectory(content);
+		router.route("/chat", new Supplier<JWebSocket>() {
+			@Override
+			public JWebSocket get() {
+				return new JWebSocket(true) {
+					@Override
+					protected void onServerStarted(ServerSocket server) {
+					}
+
+					@Override
+					protected void clientConnected(Socket client) {
+						System.out.println("Client connected: " + client.getInetAddress().getHostAddress());
+					}
+
+					@Override
+					protected void clientDisconnected() {
+					}
+
+					@Override
+					protected void interpretClientTextMessage(String decoded_data) {
+						router.broadcastTextMessage(decoded_data);
+					}
+
+					@Override
+					protected void interpretClientBinaryMessage(byte[] decoded_data) {
+					}
+				};
+			}
+		});
+		router.start(port);
+	}
+
+}
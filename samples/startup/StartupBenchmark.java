@@ -0,0 +1,177 @@
+package websocket;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Measures how fast a new server is ready: from main to onServerStarted, then to the
+ * first completed handshake and the first echoed message.
+ *
+ * Each run is a new JVM, started by this class with the same classpath, so the class
+ * loading and the JIT warm-up are measured like in a real restart. The extra arguments
+ * are given to the JVM of the runs:
+ *
+ * java websocket.StartupBenchmark [runs] [JVM options...]
+ *
+ * To compare with an AppCDS archive, create the archive with one run and use it in the
+ * next ones:
+ *
+ * java websocket.StartupBenchmark 1 -XX:ArchiveClassesAtExit=jwebsocket.jsa
+ * java websocket.StartupBenchmark 20 -XX:SharedArchiveFile=jwebsocket.jsa
+ */
+public class StartupBenchmark {
+
+	private static final String RUN = "--run", RESULT = "RESULT ";
+
+	public static void main(String[] args) throws Exception {
+		if (args.length > 0 && RUN.equals(args[0])) {
+			run(System.nanoTime());
+			return;
+		}
+
+		int runs = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+		List<String> command = new ArrayList<String>();
+		command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+		command.addAll(Arrays.asList(args).subList(Math.min(1, args.length), args.length));
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add(StartupBenchmark.class.getName());
+		command.add(RUN);
+
+		double[] launch = new double[runs], listening = new double[runs], handshake = new double[runs],
+				message = new double[runs];
+		for (int i = 0; i < runs; i++) {
+			long start = System.nanoTime();
+			Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+			String result = null;
+			try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), "UTF-8"))) {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					if (line.startsWith(RESULT) && result == null) {
+						result = line;
+						launch[i] = (System.nanoTime() - start) / 1e6;
+					} else {
+						System.out.println(line);
+					}
+				}
+			}
+			process.waitFor();
+			if (result == null) {
+				System.out.println("Run " + (i + 1) + " failed!!!");
+				System.exit(1);
+			}
+
+			String[] times = result.substring(RESULT.length()).split(" ");
+			listening[i] = Long.parseLong(times[0]) / 1e6;
+			handshake[i] = Long.parseLong(times[1]) / 1e6;
+			message[i] = Long.parseLong(times[2]) / 1e6;
+			System.out.println(String.format("run %d: main -> listening %.1fms, -> handshake %.1fms, -> echo %.1fms, "
+					+ "launch -> echo %.1fms", i + 1, listening[i], handshake[i], message[i], launch[i]));
+		}
+
+		System.out.println(String.format("median of %d runs: main -> listening %.1fms, -> handshake %.1fms, "
+				+ "-> echo %.1fms, launch -> echo %.1fms", runs, median(listening), median(handshake), median(message),
+				median(launch)));
+	}
+
+	/**
+	 * One run: start a router, connect to it and print the times since main.
+	 */
+	private static void run(final long mainStart) throws Exception {
+		final long[] started = new long[2];
+		final JWebSocketRouter router = new JWebSocketRouter() {
+			@Override
+			protected void onServerStarted(ServerSocket server) {
+				synchronized (started) {
+					started[0] = System.nanoTime();
+					started[1] = server.getLocalPort();
+					started.notifyAll();
+				}
+			}
+		};
+		router.route("/", new Supplier<JWebSocket>() {
+			@Override
+			public JWebSocket get() {
+				return new EchoServer();
+			}
+		});
+		Thread server = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					router.start(0);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}, "StartupBenchmark-server");
+		server.setDaemon(true);
+		server.start();
+		synchronized (started) {
+			while (started[0] == 0)
+				started.wait();
+		}
+
+		long handshake, message;
+		try (Socket socket = new Socket()) {
+			socket.setTcpNoDelay(true);
+			socket.setSoTimeout(5000);
+			socket.connect(new InetSocketAddress("localhost", (int) started[1]));
+			OutputStream out = socket.getOutputStream();
+			InputStream in = socket.getInputStream();
+			out.write(("GET / HTTP/1.1\r\nHost: localhost\r\nUpgrade: websocket\r\n"
+					+ "Connection: Upgrade\r\nSec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n"
+					+ "Sec-WebSocket-Version: 13\r\n\r\n").getBytes("UTF-8"));
+
+			// read the response byte by byte, so no frame is taken with it
+			StringBuilder response = new StringBuilder();
+			while (response.length() < 4 || !response.substring(response.length() - 4).equals("\r\n\r\n")) {
+				int b = in.read();
+				if (b == -1)
+					throw new IOException("Connection closed during the handshake");
+				response.append((char) b);
+			}
+			if (!response.toString().startsWith("HTTP/1.1 101"))
+				throw new IOException("Handshake refused: " + response.toString().split("\r\n")[0]);
+			handshake = System.nanoTime();
+
+			out.write(FrameCodec.encode("hello".getBytes("UTF-8"), FrameCodec.opcodeValue(JWebSocket.TEXT_OPCODE),
+					true, new FrameCodec.MaskGenerator().nextMask()));
+			ByteBuffer received = ByteBuffer.allocate(1024);
+			FrameCodec.Frame frame = null;
+			while (frame == null) {
+				int read = in.read(received.array(), received.position(), received.remaining());
+				if (read == -1)
+					throw new IOException("Connection closed before the echo");
+				received.position(received.position() + read);
+				received.flip();
+				frame = FrameCodec.decode(received);
+				received.compact();
+			}
+			message = System.nanoTime();
+		}
+
+		System.out.println(RESULT + (started[0] - mainStart) + " " + (handshake - mainStart) + " "
+				+ (message - mainStart));
+		router.shutdown(1000);
+	}
+
+	private static double median(double[] values) {
+		double[] sorted = values.clone();
+		Arrays.sort(sorted);
+		return sorted[sorted.length / 2];
+	}
+
+}
@@ -0,0 +1,152 @@
+package websocket;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A single thread that runs many JWebSocketClient connections with one Selector.
+ *
+ * The sends can be called from any thread: the frame is encoded by the caller, and
+ * written by the caller too when nothing is waiting (see JWebSocketClient). The loop
+ * writes only what the socket couldn't take at once, so a load test can keep thousands
+ * of connections with a few loops.
+ */
+public class ClientEventLoop implements Closeable {
+
+	private final Selector selector;
+	private final Thread thread;
+	private final ConcurrentLinkedQueue<JWebSocketClient> pendingConnections, pendingWrites;
+	private volatile boolean running;
+	private volatile long maxMessageSize = JWebSocketConfig.defaults().getMaxMessageSize();
+
+	public ClientEventLoop() throws IOException {
+		this("JWebSocket-client-loop");
+	}
+
+	public ClientEventLoop(String threadName) throws IOException {
+		this.selector = Selector.open();
+		this.pendingConnections = new ConcurrentLinkedQueue<JWebSocketClient>();
+		this.pendingWrites = new ConcurrentLinkedQueue<JWebSocketClient>();
+		this.running = true;
+		this.thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				loop();
+			}
+		}, threadName);
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	/**
+	 * Open a new connection. It returns before the handshake, the listener onOpen is
+	 * called when the connection is ready, but messages can already be sent, they are
+	 * written right after the handshake.
+	 * @param uri - the address of the server, like ws://localhost:32115/chat
+	 * @param listener - receives the events of the connection
+	 * @param subprotocols - the subprotocols offered to the server, in order of preference
+	 * @return the connection
+	 * @throws IOException - when the socket can't be opened
+	 */
+	public JWebSocketClient connect(URI uri, JWebSocketClient.Listener listener, String... subprotocols)
+			throws IOException {
+		if (!"ws".equalsIgnoreCase(uri.getScheme()))
+			throw new IllegalArgumentException("Only ws:// is supported: " + uri);
+
+		int port = uri.getPort() != -1 ? uri.getPort() : 80;
+		SocketChannel channel = SocketChannel.open();
+		channel.configureBlocking(false);
+		channel.socket().setTcpNoDelay(true);
+		channel.connect(new InetSocketAddress(uri.getHost(), port));
+
+		JWebSocketClient client = new JWebSocketClient(this, channel, uri, listener, subprotocols,
+				this.maxMessageSize);
+		this.pendingConnections.add(client);
+		this.selector.wakeup();
+		return client;
+	}
+
+	/**
+	 * A bigger message received closes the connection with 1009 (message too big), like
+	 * message.maxSize on the server. It applies to the connections opened after.
+	 * @param maxMessageSize - maximum size of a message, in bytes
+	 */
+	public void setMaxMessageSize(long maxMessageSize) {
+		if (maxMessageSize < 1)
+			throw new IllegalArgumentException("Invalid maximum message size: " + maxMessageSize);
+		this.maxMessageSize = maxMessageSize;
+	}
+
+	/**
+	 * Ask the loop to write the queued frames of the client.
+	 */
+	void requestWrite(JWebSocketClient client) {
+		this.pendingWrites.add(client);
+		if (Thread.currentThread() != this.thread)
+			this.selector.wakeup();
+	}
+
+	/**
+	 * Stop the loop and close every connection, without the closing handshake.
+	 */
+	@Override
+	public void close() throws IOException {
+		this.running = false;
+		this.selector.wakeup();
+		try {
+			this.thread.join(1000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void loop() {
+		try {
+			while (this.running) {
+				this.selector.select();
+
+				JWebSocketClient client;
+				while ((client = this.pendingConnections.poll()) != null) {
+					client.register(this.selector);
+				}
+				while ((client = this.pendingWrites.poll()) != null) {
+					client.enableWrite();
+				}
+
+				Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					client = (JWebSocketClient) key.attachment();
+
+					try {
+						if (key.isValid() && key.isConnectable())
+							client.finishConnect();
+						if (key.isValid() && key.isReadable())
+							client.readable();
+						if (key.isValid() && key.isWritable())
+							client.writable();
+					} catch (IOException | RuntimeException e) {
+						client.fail(e);
+					}
+				}
+			}
+
+			for (SelectionKey key : this.selector.keys()) {
+				((JWebSocketClient) key.attachment()).fail(new IOException("Event loop closed"));
+			}
+			this.selector.close();
+		} catch (IOException e) {
+			System.out.println("Error in the client event loop!!!");
+			e.printStackTrace();
+		}
+	}
+
+}
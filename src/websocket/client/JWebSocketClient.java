@@ -0,0 +1,475 @@
+package websocket;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Base64;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Client side of RFC 6455, the counterpart of JWebSocket. It uses the same FrameCodec,
+ * but the client frames are masked, as the RFC requires.
+ *
+ * The connections are created by a ClientEventLoop. Every send is asynchronous: the returned
+ * future is completed when the frame is written to the socket. When nothing is waiting to
+ * be written, the frame is written right away by the caller, with a non-blocking write.
+ * Otherwise (or for the part the socket didn't take) it is put in the connection queue
+ * and written by the loop on OP_WRITE. Many sends can be made without waiting the previous
+ * ones (pipelining), they are written together with a single gathering write whenever possible.
+ */
+public class JWebSocketClient {
+
+	/**
+	 * Receives the events of a connection. They are called by the event loop thread, so
+	 * they must not block.
+	 */
+	public interface Listener {
+		void onOpen(JWebSocketClient client);
+
+		void onTextMessage(JWebSocketClient client, String message);
+
+		void onBinaryMessage(JWebSocketClient client, byte[] message);
+
+		void onClose(JWebSocketClient client, int statusCode);
+
+		void onError(JWebSocketClient client, Exception error);
+	}
+
+	private enum State {
+		CONNECTING, HANDSHAKE, OPEN, CLOSING, CLOSED
+	}
+
+	private static class PendingWrite {
+		final ByteBuffer frame;
+		final CompletableFuture<Void> future;
+
+		PendingWrite(ByteBuffer frame, CompletableFuture<Void> future) {
+			this.frame = frame;
+			this.future = future;
+		}
+	}
+
+	private static final int MAX_GATHER = 64;
+
+	private final ClientEventLoop loop;
+	private final SocketChannel channel;
+	private final URI uri;
+	private final Listener listener;
+	private final FrameCodec.MaskGenerator masks;
+	private final ArrayDeque<PendingWrite> writeQueue;
+	private final String handshakeKey;
+	private final String[] offeredSubprotocols;
+	private final long maxMessageSize;
+	private String subprotocol;
+
+	private SelectionKey key;
+	private volatile State state;
+	private ByteBuffer readBuffer;
+	private ByteBuffer handshakeRequest;
+	private int fragmentedOpcode;
+	private ByteBuffer fragments;
+
+	JWebSocketClient(ClientEventLoop loop, SocketChannel channel, URI uri, Listener listener,
+			String[] subprotocols, long maxMessageSize) {
+		this.loop = loop;
+		this.offeredSubprotocols = subprotocols;
+		this.maxMessageSize = maxMessageSize;
+		this.channel = channel;
+		this.uri = uri;
+		this.listener = listener;
+		this.masks = new FrameCodec.MaskGenerator();
+		this.writeQueue = new ArrayDeque<PendingWrite>();
+		this.state = State.CONNECTING;
+		this.readBuffer = ByteBuffer.allocate(8192);
+
+		byte[] nonce = new byte[16];
+		for (int i = 0; i < nonce.length; i += 4) {
+			int mask = this.masks.nextMask();
+			nonce[i] = (byte) (mask >>> 24);
+			nonce[i + 1] = (byte) (mask >>> 16);
+			nonce[i + 2] = (byte) (mask >>> 8);
+			nonce[i + 3] = (byte) mask;
+		}
+		this.handshakeKey = Base64.getEncoder().encodeToString(nonce);
+	}
+
+	public URI getUri() {
+		return this.uri;
+	}
+
+	/**
+	 * @return the subprotocol chosen by the server, or null if there is none
+	 */
+	public String getSubprotocol() {
+		return this.subprotocol;
+	}
+
+	public boolean isOpen() {
+		return this.state == State.OPEN;
+	}
+
+	public CompletableFuture<Void> sendTextMessage(String message) {
+		try {
+			return this.send(message.getBytes("UTF-8"), FrameCodec.opcodeValue(JWebSocket.TEXT_OPCODE));
+		} catch (UnsupportedEncodingException e) {
+			CompletableFuture<Void> future = new CompletableFuture<Void>();
+			future.completeExceptionally(e);
+			return future;
+		}
+	}
+
+	public CompletableFuture<Void> sendBinaryMessage(byte[] message) {
+		return this.send(message, FrameCodec.opcodeValue(JWebSocket.BINARY_OPCODE));
+	}
+
+	/**
+	 * @param content - the payload of the ping, 125 bytes at most
+	 * @throws IllegalArgumentException - if the payload is bigger than a control frame allows
+	 */
+	public CompletableFuture<Void> ping(byte[] content) {
+		if (content.length > 125)
+			throw new IllegalArgumentException("Ping payload bigger than 125 bytes: " + content.length);
+		return this.send(content, FrameCodec.opcodeValue(JWebSocket.PING_OPCODE));
+	}
+
+	/**
+	 * Start the closing handshake. The connection is closed when the server answers.
+	 * @param statusCode - the close status, like 1000 (normal closure)
+	 */
+	public CompletableFuture<Void> close(int statusCode) {
+		return this.sendClose(new byte[] { (byte) (statusCode >> 8), (byte) statusCode });
+	}
+
+	private CompletableFuture<Void> sendClose(byte[] payload) {
+		CompletableFuture<Void> future = this.send(payload, FrameCodec.opcodeValue(JWebSocket.CLOSE_CONNECTION_OPCODE));
+		this.state = State.CLOSING;
+		return future;
+	}
+
+	/**
+	 * Encode a masked frame and write it, or put it in the queue. The frames sent before
+	 * the handshake is done are kept until it is.
+	 */
+	private CompletableFuture<Void> send(byte[] payload, int opcode) {
+		CompletableFuture<Void> future = new CompletableFuture<Void>();
+		if (this.state == State.CLOSING || this.state == State.CLOSED) {
+			future.completeExceptionally(new ClosedChannelException());
+			return future;
+		}
+
+		boolean wasEmpty, written = false;
+		IOException failed = null;
+		synchronized (this.writeQueue) {
+			ByteBuffer frame = ByteBuffer.allocate(FrameCodec.headerSize(payload.length, true) + payload.length);
+			FrameCodec.encode(frame, payload, 0, payload.length, opcode, true, this.masks.nextMask());
+			frame.flip();
+
+			wasEmpty = this.writeQueue.isEmpty();
+			if (wasEmpty && this.state == State.OPEN) {
+				// nothing waiting: write now, only the rest waits for OP_WRITE
+				try {
+					this.channel.write(frame);
+				} catch (IOException e) {
+					failed = e;
+				}
+				written = failed == null && !frame.hasRemaining();
+			}
+			if (failed == null && !written)
+				this.writeQueue.add(new PendingWrite(frame, future));
+		}
+
+		// completed out of the lock, the callbacks may send again
+		if (failed != null) {
+			future.completeExceptionally(failed);
+			return future;
+		}
+		if (written) {
+			future.complete(null);
+			return future;
+		}
+
+		if (wasEmpty && this.state == State.OPEN)
+			this.loop.requestWrite(this);
+		return future;
+	}
+
+	void register(Selector selector) throws ClosedChannelException {
+		this.key = this.channel.register(selector, SelectionKey.OP_CONNECT, this);
+	}
+
+	void finishConnect() throws IOException {
+		if (!this.channel.finishConnect())
+			return;
+
+		String path = this.uri.getRawPath() == null || this.uri.getRawPath().isEmpty() ? "/" : this.uri.getRawPath();
+		if (this.uri.getRawQuery() != null)
+			path = path + "?" + this.uri.getRawQuery();
+		String host = this.uri.getPort() != -1 ? this.uri.getHost() + ":" + this.uri.getPort() : this.uri.getHost();
+
+		StringBuilder protocols = new StringBuilder();
+		for (String offered : this.offeredSubprotocols) {
+			protocols.append(protocols.length() == 0 ? "Sec-WebSocket-Protocol: " : ", ").append(offered);
+		}
+		if (protocols.length() > 0)
+			protocols.append("\r\n");
+
+		byte[] request = ("GET " + path + " HTTP/1.1\r\n" + "Host: " + host + "\r\n" + "Upgrade: websocket\r\n"
+				+ "Connection: Upgrade\r\n" + "Sec-WebSocket-Key: " + this.handshakeKey + "\r\n" + protocols
+				+ "Sec-WebSocket-Version: 13\r\n\r\n").getBytes("UTF-8");
+		this.handshakeRequest = ByteBuffer.wrap(request);
+		this.state = State.HANDSHAKE;
+		this.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+	}
+
+	void enableWrite() {
+		if (this.key != null && this.key.isValid() && this.state != State.CONNECTING
+				&& this.state != State.HANDSHAKE)
+			this.key.interestOps(this.key.interestOps() | SelectionKey.OP_WRITE);
+	}
+
+	void writable() throws IOException {
+		if (this.handshakeRequest != null) {
+			this.channel.write(this.handshakeRequest);
+			if (this.handshakeRequest.hasRemaining())
+				return;
+			this.handshakeRequest = null;
+			this.key.interestOps(SelectionKey.OP_READ);
+			return;
+		}
+
+		synchronized (this.writeQueue) {
+			while (!this.writeQueue.isEmpty()) {
+				ByteBuffer[] buffers = new ByteBuffer[Math.min(this.writeQueue.size(), MAX_GATHER)];
+				int i = 0;
+				for (PendingWrite pending : this.writeQueue) {
+					if (i == buffers.length)
+						break;
+					buffers[i++] = pending.frame;
+				}
+
+				this.channel.write(buffers);
+
+				while (!this.writeQueue.isEmpty() && !this.writeQueue.peek().frame.hasRemaining()) {
+					this.writeQueue.poll().future.complete(null);
+				}
+
+				if (buffers[buffers.length - 1].hasRemaining()) {
+					// the socket buffer is full, wait the next OP_WRITE
+					return;
+				}
+			}
+			if (this.key.isValid())
+				this.key.interestOps(SelectionKey.OP_READ);
+		}
+	}
+
+	void readable() throws IOException {
+		if (!this.readBuffer.hasRemaining()) {
+			if (this.state == State.HANDSHAKE && this.readBuffer.capacity() >= HttpRequest.MAX_REQUEST_SIZE)
+				throw new IOException("Handshake response bigger than " + HttpRequest.MAX_REQUEST_SIZE + " bytes");
+			ByteBuffer bigger = ByteBuffer.allocate(this.readBuffer.capacity() * 2);
+			this.readBuffer.flip();
+			bigger.put(this.readBuffer);
+			this.readBuffer = bigger;
+		}
+
+		if (this.channel.read(this.readBuffer) == -1) {
+			this.closed(1006);
+			return;
+		}
+
+		this.readBuffer.flip();
+		try {
+			if (this.state == State.HANDSHAKE && !this.readHandshake())
+				return;
+
+			while (this.state != State.CLOSED) {
+				long length;
+				try {
+					length = FrameCodec.payloadLength(this.readBuffer);
+				} catch (IllegalStateException e) {
+					throw new IOException(e.getMessage());
+				}
+				if (length > this.maxMessageSize) {
+					// refused before the whole payload is received
+					this.failConnection(1009);
+					break;
+				}
+
+				FrameCodec.Frame frame = FrameCodec.decode(this.readBuffer);
+				if (frame == null)
+					break;
+				this.interpret(frame);
+			}
+		} finally {
+			this.readBuffer.compact();
+		}
+	}
+
+	private boolean readHandshake() throws IOException {
+		int end = -1;
+		for (int i = this.readBuffer.position(); i + 3 < this.readBuffer.limit(); i++) {
+			if (this.readBuffer.get(i) == '\r' && this.readBuffer.get(i + 1) == '\n'
+					&& this.readBuffer.get(i + 2) == '\r' && this.readBuffer.get(i + 3) == '\n') {
+				end = i + 4;
+				break;
+			}
+		}
+		if (end == -1)
+			return false;
+
+		byte[] response = new byte[end - this.readBuffer.position()];
+		this.readBuffer.get(response);
+		String[] lines = new String(response, "UTF-8").split("\r\n");
+
+		// header names are case insensitive (RFC 7230, 3.2)
+		Map<String, String> headers = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+		for (int i = 1; i < lines.length; i++) {
+			int colon = lines[i].indexOf(':');
+			if (colon > 0)
+				headers.put(lines[i].substring(0, colon).trim(), lines[i].substring(colon + 1).trim());
+		}
+
+		String accept = headers.get("Sec-WebSocket-Accept");
+		if (!lines[0].startsWith("HTTP/1.1 101") || accept == null || !accept.equals(expectedAccept()))
+			throw new IOException("Invalid handshake response: " + lines[0]);
+
+		this.subprotocol = headers.get("Sec-WebSocket-Protocol");
+
+		this.state = State.OPEN;
+		this.listener.onOpen(this);
+		synchronized (this.writeQueue) {
+			if (!this.writeQueue.isEmpty())
+				this.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		}
+		return true;
+	}
+
+	private String expectedAccept() throws IOException {
+		try {
+			return JWebSocket.acceptKey(this.handshakeKey);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException("SHA-1 hasn't been found to digest message!!!", e);
+		}
+	}
+
+	private void interpret(FrameCodec.Frame frame) throws IOException {
+		byte[] payload = frame.getPayload();
+		if (frame.getOpcodeValue() >= 0x8 && (!frame.isFin() || payload.length > 125))
+			throw new IOException("Control frames can't be fragmented and have 125 bytes at most");
+
+		switch (frame.getOpcode()) {
+		case JWebSocket.CONTINUOUS_MSG_OPCODE:
+			if (this.fragments == null)
+				throw new IOException("Continuation frame without a first fragment");
+			if (this.fragments.position() + (long) payload.length > this.maxMessageSize) {
+				this.failConnection(1009);
+				break;
+			}
+			this.appendFragment(payload);
+			if (frame.isFin()) {
+				this.fragments.flip();
+				byte[] message = new byte[this.fragments.remaining()];
+				this.fragments.get(message);
+				this.fragments = null;
+				this.deliver(this.fragmentedOpcode, message);
+			}
+			break;
+		case JWebSocket.TEXT_OPCODE:
+		case JWebSocket.BINARY_OPCODE:
+			if (frame.isFin()) {
+				this.deliver(frame.getOpcodeValue(), payload);
+			} else {
+				this.fragmentedOpcode = frame.getOpcodeValue();
+				this.fragments = ByteBuffer.allocate(Math.max(payload.length * 2, 1024));
+				this.appendFragment(payload);
+			}
+			break;
+		case JWebSocket.PING_OPCODE:
+			this.send(payload, FrameCodec.opcodeValue(JWebSocket.PONG_OPCODE));
+			break;
+		case JWebSocket.PONG_OPCODE:
+			break;
+		case JWebSocket.CLOSE_CONNECTION_OPCODE:
+			// 1005 is only reported, it is never sent (RFC 6455, 7.4.1)
+			int statusCode = payload.length >= 2 ? ((payload[0] & 0xFF) << 8) | (payload[1] & 0xFF) : 1005;
+			if (this.state == State.OPEN) {
+				// echo the close frame (its status code, or nothing) before closing the socket
+				this.sendClose(payload.length >= 2 ? new byte[] { payload[0], payload[1] } : new byte[0]);
+				this.writable();
+				this.closed(statusCode);
+			} else {
+				this.closed(statusCode);
+			}
+			break;
+		default:
+			throw new IOException("Unknown opcode " + frame.getOpcode());
+		}
+	}
+
+	private void appendFragment(byte[] payload) {
+		if (this.fragments.remaining() < payload.length) {
+			ByteBuffer bigger = ByteBuffer.allocate((this.fragments.position() + payload.length) * 2);
+			this.fragments.flip();
+			bigger.put(this.fragments);
+			this.fragments = bigger;
+		}
+		this.fragments.put(payload);
+	}
+
+	private void deliver(int opcode, byte[] message) throws UnsupportedEncodingException {
+		if (opcode == FrameCodec.opcodeValue(JWebSocket.TEXT_OPCODE))
+			this.listener.onTextMessage(this, new String(message, "UTF-8"));
+		else
+			this.listener.onBinaryMessage(this, message);
+	}
+
+	/**
+	 * Send a close frame with the status code and close the socket, without waiting the
+	 * answer of the server.
+	 */
+	private void failConnection(int statusCode) throws IOException {
+		this.sendClose(new byte[] { (byte) (statusCode >> 8), (byte) statusCode });
+		this.writable();
+		this.closed(statusCode);
+	}
+
+	private void closed(int statusCode) {
+		if (this.state == State.CLOSED)
+			return;
+		this.state = State.CLOSED;
+		try {
+			this.channel.close();
+		} catch (IOException e) {
+			// nothing to do, it is already closing
+		}
+		this.failPending(new ClosedChannelException());
+		this.listener.onClose(this, statusCode);
+	}
+
+	void fail(Exception error) {
+		if (this.state == State.CLOSED)
+			return;
+		this.listener.onError(this, error);
+		this.closed(1006);
+	}
+
+	private void failPending(Exception error) {
+		synchronized (this.writeQueue) {
+			PendingWrite pending;
+			while ((pending = this.writeQueue.poll()) != null) {
+				pending.future.completeExceptionally(error);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,94 @@
+package websocket;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of send buffers, so encoding a message doesn't allocate a new array each time.
+ *
+ * Every pooled buffer has the same size: room for a frame with the payload size of the
+ * pool and the biggest header, so a fragment of outbound.fragmentSize fits in one. A
+ * bigger buffer can be asked, but it is allocated just for that message and is not kept
+ * in the pool. The buffers are heap buffers, because they are written to the socket
+ * OutputStream.
+ */
+public class BufferPool {
+
+	private static class Shared {
+		static final BufferPool INSTANCE = new BufferPool(16 * 1024, 256);
+	}
+
+	private final int bufferSize, maxPooled;
+	private final ConcurrentLinkedQueue<ByteBuffer> free;
+	private final AtomicInteger pooled;
+
+	/**
+	 * @param payloadSize - payload of the biggest frame held by each buffer
+	 * @param maxPooled - maximum number of free buffers kept
+	 */
+	public BufferPool(int payloadSize, int maxPooled) {
+		if (payloadSize <= 0 || payloadSize > Integer.MAX_VALUE - FrameCodec.MAX_HEADER_SIZE || maxPooled < 0)
+			throw new IllegalArgumentException("Invalid buffer pool size");
+
+		this.bufferSize = payloadSize + FrameCodec.MAX_HEADER_SIZE;
+		this.maxPooled = maxPooled;
+		this.free = new ConcurrentLinkedQueue<ByteBuffer>();
+		this.pooled = new AtomicInteger();
+	}
+
+	/**
+	 * @return the pool used when none is given, created on the first use
+	 */
+	public static BufferPool shared() {
+		return Shared.INSTANCE;
+	}
+
+	/**
+	 * @return the size of each buffer, the payload size and the biggest header
+	 */
+	public int getBufferSize() {
+		return this.bufferSize;
+	}
+
+	/**
+	 * @param size - minimum size of the buffer
+	 * @return a clear buffer with at least the given size
+	 */
+	public ByteBuffer acquire(int size) {
+		if (size > this.bufferSize)
+			return ByteBuffer.allocate(size);
+
+		ByteBuffer buffer = this.free.poll();
+		if (buffer == null)
+			return ByteBuffer.allocate(this.bufferSize);
+
+		this.pooled.decrementAndGet();
+		buffer.clear();
+		return buffer;
+	}
+
+	/**
+	 * Allocate free buffers ahead of the first messages, up to the maximum pooled.
+	 * @param count - number of buffers wanted in the pool
+	 */
+	public void prewarm(int count) {
+		while (this.pooled.get() < Math.min(count, this.maxPooled))
+			this.release(ByteBuffer.allocate(this.bufferSize));
+	}
+
+	/**
+	 * Give the buffer back to the pool. It must not be used after that.
+	 */
+	public void release(ByteBuffer buffer) {
+		if (buffer.capacity() != this.bufferSize || buffer.isDirect())
+			return;
+
+		if (this.pooled.incrementAndGet() > this.maxPooled) {
+			this.pooled.decrementAndGet();
+			return;
+		}
+		this.free.offer(buffer);
+	}
+
+}
@@ -0,0 +1,100 @@
+package websocket;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Watches a configuration file (see JWebSocketConfig) and loads it again when it changes,
+ * so a running server can be tuned without closing its connections.
+ *
+ * The file is checked by a daemon thread, by its modification time and size. A file that
+ * can't be loaded, or is invalid, is reported and ignored: the previous configuration
+ * stays until the file is fixed.
+ */
+public class ConfigWatcher implements Closeable {
+
+	/**
+	 * Receives the new configurations. It is called by the watcher thread.
+	 */
+	public interface Listener {
+		void configChanged(JWebSocketConfig config);
+	}
+
+	private final File file;
+	private final Listener listener;
+	private final Thread thread;
+	private volatile JWebSocketConfig config;
+	private volatile boolean running;
+	private long lastModified, length;
+
+	/**
+	 * Load the file and start watching it.
+	 * @param file - the properties file
+	 * @param intervalMillis - time between the checks of the file
+	 * @param listener - receives each new configuration, but not the first one
+	 * @throws IOException - if the file can't be read
+	 * @throws IllegalArgumentException - if the file has an invalid setting
+	 */
+	public ConfigWatcher(File file, final long intervalMillis, Listener listener) throws IOException {
+		this.file = file;
+		this.listener = listener;
+		this.lastModified = file.lastModified();
+		this.length = file.length();
+		this.config = JWebSocketConfig.load(file);
+		this.running = true;
+
+		this.thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					while (running) {
+						Thread.sleep(intervalMillis);
+						check();
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}, "JWebSocket-config-watcher");
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	/**
+	 * @return the last valid configuration loaded
+	 */
+	public JWebSocketConfig getConfig() {
+		return this.config;
+	}
+
+	/**
+	 * Stop watching the file.
+	 */
+	@Override
+	public void close() {
+		this.running = false;
+		this.thread.interrupt();
+	}
+
+	private void check() {
+		long lastModified = this.file.lastModified(), length = this.file.length();
+		if (lastModified == this.lastModified && length == this.length)
+			return;
+		this.lastModified = lastModified;
+		this.length = length;
+
+		JWebSocketConfig config;
+		try {
+			config = JWebSocketConfig.load(this.file);
+		} catch (IOException | IllegalArgumentException e) {
+			System.out.println("Error when trying to reload " + this.file + ", keeping the previous configuration!!! "
+					+ e.getMessage());
+			return;
+		}
+
+		this.config = config;
+		this.listener.configChanged(config);
+	}
+
+}
@@ -0,0 +1,272 @@
+package websocket;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The open connections of a server, each one identified by a long id.
+ *
+ * The state read by the broadcasts and by the admin queries (when the connection was
+ * opened, the last message received, the messages and bytes of each direction) is kept
+ * in a single array of longs, 64 bytes per connection, instead of fields of objects. So
+ * a query over every connection runs over primitive arrays, without boxing and without
+ * touching the JWebSocket instances.
+ *
+ * The id has the slot of the connection in the low 32 bits and the generation of the
+ * slot in the high 32 bits: a slot is reused after the connection is removed, but the
+ * old id doesn't find the new connection.
+ *
+ * Registering, removing, the lookups and the iteration don't lock. The iteration is
+ * weakly consistent: a connection added or removed during it may be visited or not.
+ */
+public class ConnectionRegistry {
+
+	/**
+	 * Receives the connections of forEach.
+	 */
+	public interface Visitor {
+		void visit(long id, JWebSocket connection);
+	}
+
+	// the longs of each connection, 8 longs (a cache line) per slot
+	private static final int CONNECTED_AT = 0, LAST_RECEIVED = 1, MESSAGES_RECEIVED = 2, BYTES_RECEIVED = 3,
+			MESSAGES_SENT = 4, BYTES_SENT = 5, STRIDE = 8;
+
+	private static final int NO_SLOT = -1;
+
+	private final int capacity;
+	private final AtomicReferenceArray<JWebSocket> connections;
+	private final AtomicIntegerArray generations;
+	private final AtomicLongArray state;
+	// stack of the free slots: the next slot of each free slot, and the top slot with a tag against ABA
+	private final AtomicIntegerArray nextFree;
+	private final AtomicLong freeTop;
+	private final AtomicInteger used, size;
+
+	/**
+	 * @param capacity - maximum number of connections at the same time
+	 */
+	public ConnectionRegistry(int capacity) {
+		if (capacity <= 0)
+			throw new IllegalArgumentException("Capacity must be positive");
+
+		this.capacity = capacity;
+		this.connections = new AtomicReferenceArray<JWebSocket>(capacity);
+		this.generations = new AtomicIntegerArray(capacity);
+		this.state = new AtomicLongArray(capacity * STRIDE);
+		this.nextFree = new AtomicIntegerArray(capacity);
+		this.freeTop = new AtomicLong(pack(0, NO_SLOT));
+		this.used = new AtomicInteger();
+		this.size = new AtomicInteger();
+	}
+
+	/**
+	 * Add a connection.
+	 * @param connection - the connection
+	 * @return the id of the connection, or -1 if the registry is full
+	 */
+	public long register(JWebSocket connection) {
+		int slot = this.allocate();
+		if (slot == NO_SLOT)
+			return -1;
+
+		int base = slot * STRIDE;
+		long now = System.currentTimeMillis();
+		this.state.set(base + CONNECTED_AT, now);
+		this.state.set(base + LAST_RECEIVED, now);
+		this.state.set(base + MESSAGES_RECEIVED, 0);
+		this.state.set(base + BYTES_RECEIVED, 0);
+		this.state.set(base + MESSAGES_SENT, 0);
+		this.state.set(base + BYTES_SENT, 0);
+		this.connections.set(slot, connection);
+		this.size.incrementAndGet();
+		return id(this.generations.get(slot), slot);
+	}
+
+	/**
+	 * Remove a connection. The id is not valid anymore.
+	 * @param id - the id given by register
+	 * @return true if the connection was removed, false if it was not registered
+	 */
+	public boolean unregister(long id) {
+		int slot = this.slot(id);
+		if (slot == NO_SLOT)
+			return false;
+
+		JWebSocket connection = this.connections.get(slot);
+		if (connection == null || !this.connections.compareAndSet(slot, connection, null))
+			return false;
+
+		this.generations.incrementAndGet(slot);
+		this.size.decrementAndGet();
+		this.release(slot);
+		return true;
+	}
+
+	/**
+	 * @param id - the id given by register
+	 * @return the connection, or null if it is not registered anymore
+	 */
+	public JWebSocket get(long id) {
+		int slot = this.slot(id);
+		return slot == NO_SLOT ? null : this.connections.get(slot);
+	}
+
+	/**
+	 * Visit every connection registered.
+	 * @param visitor - receives each connection and its id
+	 */
+	public void forEach(Visitor visitor) {
+		int used = this.used.get();
+		for (int slot = 0; slot < used; slot++) {
+			JWebSocket connection = this.connections.get(slot);
+			if (connection != null)
+				visitor.visit(id(this.generations.get(slot), slot), connection);
+		}
+	}
+
+	/**
+	 * @return how many connections are registered
+	 */
+	public int size() {
+		return this.size.get();
+	}
+
+	public int getCapacity() {
+		return this.capacity;
+	}
+
+	/**
+	 * Count a message received by the connection.
+	 */
+	void received(long id, int bytes) {
+		int slot = this.slot(id);
+		if (slot == NO_SLOT)
+			return;
+		int base = slot * STRIDE;
+		this.state.lazySet(base + LAST_RECEIVED, System.currentTimeMillis());
+		this.state.incrementAndGet(base + MESSAGES_RECEIVED);
+		this.state.addAndGet(base + BYTES_RECEIVED, bytes);
+	}
+
+	/**
+	 * Count a message sent to the connection.
+	 */
+	void sent(long id, int bytes) {
+		int slot = this.slot(id);
+		if (slot == NO_SLOT)
+			return;
+		int base = slot * STRIDE;
+		this.state.incrementAndGet(base + MESSAGES_SENT);
+		this.state.addAndGet(base + BYTES_SENT, bytes);
+	}
+
+	/**
+	 * @return System.currentTimeMillis() when the connection was registered, or -1 if it is not registered
+	 */
+	public long getConnectedAt(long id) {
+		return this.read(id, CONNECTED_AT);
+	}
+
+	/**
+	 * @return System.currentTimeMillis() of the last message received, or -1 if it is not registered
+	 */
+	public long getLastReceived(long id) {
+		return this.read(id, LAST_RECEIVED);
+	}
+
+	public long getMessagesReceived(long id) {
+		return this.read(id, MESSAGES_RECEIVED);
+	}
+
+	public long getBytesReceived(long id) {
+		return this.read(id, BYTES_RECEIVED);
+	}
+
+	public long getMessagesSent(long id) {
+		return this.read(id, MESSAGES_SENT);
+	}
+
+	/**
+	 * @return the bytes of the frames written, headers included
+	 */
+	public long getBytesSent(long id) {
+		return this.read(id, BYTES_SENT);
+	}
+
+	/**
+	 * @param idleMillis - time without receiving messages
+	 * @return how many connections haven't received a message for idleMillis or more
+	 */
+	public int countIdle(long idleMillis) {
+		long limit = System.currentTimeMillis() - idleMillis;
+		int used = this.used.get(), idle = 0;
+		for (int slot = 0; slot < used; slot++) {
+			if (this.connections.get(slot) != null && this.state.get(slot * STRIDE + LAST_RECEIVED) <= limit)
+				idle++;
+		}
+		return idle;
+	}
+
+	private long read(long id, int field) {
+		int slot = this.slot(id);
+		if (slot == NO_SLOT)
+			return -1;
+		long value = this.state.get(slot * STRIDE + field);
+		// the slot may have been reused while it was read
+		return this.slot(id) == slot ? value : -1;
+	}
+
+	/**
+	 * @return the slot of the id, or NO_SLOT if the id is not valid anymore
+	 */
+	private int slot(long id) {
+		int slot = (int) id;
+		if (id < 0 || slot >= this.capacity || (this.generations.get(slot) & 0x7FFFFFFF) != (int) (id >>> 32)
+				|| this.connections.get(slot) == null)
+			return NO_SLOT;
+		return slot;
+	}
+
+	private int allocate() {
+		while (true) {
+			long top = this.freeTop.get();
+			int slot = (int) top;
+			if (slot == NO_SLOT)
+				break;
+			if (this.freeTop.compareAndSet(top, pack((int) (top >>> 32) + 1, this.nextFree.get(slot))))
+				return slot;
+		}
+
+		// no slot released, take one never used
+		while (true) {
+			int used = this.used.get();
+			if (used == this.capacity)
+				return NO_SLOT;
+			if (this.used.compareAndSet(used, used + 1))
+				return used;
+		}
+	}
+
+	private void release(int slot) {
+		while (true) {
+			long top = this.freeTop.get();
+			this.nextFree.set(slot, (int) top);
+			if (this.freeTop.compareAndSet(top, pack((int) (top >>> 32) + 1, slot)))
+				return;
+		}
+	}
+
+	private static long pack(int tag, int slot) {
+		return ((long) tag << 32) | (slot & 0xFFFFFFFFL);
+	}
+
+	private static long id(int generation, int slot) {
+		// the generation is kept positive so a valid id is never negative
+		return ((long) (generation & 0x7FFFFFFF) << 32) | slot;
+	}
+
+}
@@ -0,0 +1,331 @@
+package websocket;
+
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+
+/**
+ * Encoder and decoder of RFC 6455 frames, shared by the server (JWebSocket) and the
+ * client (JWebSocketClient). The header is built with bit operations, there is no
+ * String conversion in the way.
+ *
+ *  0                   1                   2                   3
+ *  0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1 2 3 4 5 6 7 8 9 0 1
+ * +-+-+-+-+-------+-+-------------+-------------------------------+
+ * |F|R|R|R| opcode|M| Payload len |    Extended payload length    |
+ * |I|S|S|S|  (4)  |A|     (7)     |             (16/64)           |
+ * |N|V|V|V|       |S|             |   (if payload len==126/127)   |
+ * | |1|2|3|       |K|             |                               |
+ * +-+-+-+-+-------+-+-------------+ - - - - - - - - - - - - - - - +
+ * |     Extended payload length continued, if payload len == 127  |
+ * + - - - - - - - - - - - - - - - +-------------------------------+
+ * |                               |Masking-key, if MASK set to 1  |
+ * +-------------------------------+-------------------------------+
+ * | Masking-key (continued)       |          Payload Data         |
+ * +-------------------------------- - - - - - - - - - - - - - - - +
+ */
+public final class FrameCodec {
+
+	/**
+	 * A frame read from the network. The payload is unmasked by decode, or by the
+	 * first call to unmask or getPayload when it was decoded with decode(buffer, false).
+	 */
+	public static class Frame {
+		private final boolean fin;
+		private final int rsv, opcode;
+		private final byte[] payload;
+		private final boolean masked;
+		private byte[] mask;
+
+		Frame(boolean fin, int rsv, int opcode, byte[] payload, byte[] mask) {
+			this.fin = fin;
+			this.rsv = rsv;
+			this.opcode = opcode;
+			this.payload = payload;
+			this.masked = mask != null;
+			this.mask = mask;
+		}
+
+		/**
+		 * Unmask the payload, if it is still masked.
+		 */
+		public void unmask() {
+			if (this.mask == null)
+				return;
+			byte[] bkey = this.mask;
+			for (int i = 0; i < this.payload.length; i++) {
+				this.payload[i] = (byte) (this.payload[i] ^ bkey[i & 0x3]);
+			}
+			this.mask = null;
+		}
+
+		public boolean isFin() {
+			return this.fin;
+		}
+
+		/**
+		 * @return true if the frame was sent masked, as every client frame must be
+		 */
+		public boolean isMasked() {
+			return this.masked;
+		}
+
+		/**
+		 * @return the RSV1, RSV2 and RSV3 bits, 0 unless an extension is negotiated
+		 */
+		public int getRsv() {
+			return this.rsv;
+		}
+
+		/**
+		 * @return the opcode as the JWebSocket constants ("0001", "1000"...)
+		 */
+		public String getOpcode() {
+			return opcodeBits(this.opcode);
+		}
+
+		public int getOpcodeValue() {
+			return this.opcode;
+		}
+
+		public byte[] getPayload() {
+			this.unmask();
+			return this.payload;
+		}
+	}
+
+	/**
+	 * Generates the masking keys of the client frames. RFC 6455 asks for keys that can't be
+	 * predicted, so the generator is seeded by SecureRandom, but each key is produced by a
+	 * xorshift step, which is much cheaper than asking SecureRandom for every frame.
+	 * It is not thread-safe, each connection (or event loop) must have its own.
+	 */
+	public static class MaskGenerator {
+		private long state;
+
+		public MaskGenerator() {
+			this(new SecureRandom());
+		}
+
+		public MaskGenerator(SecureRandom seed) {
+			long s = seed.nextLong();
+			this.state = s == 0 ? 0x9E3779B97F4A7C15L : s;
+		}
+
+		public int nextMask() {
+			long x = this.state;
+			x ^= x << 13;
+			x ^= x >>> 7;
+			x ^= x << 17;
+			this.state = x;
+			return (int) (x >>> 32);
+		}
+	}
+
+	/**
+	 * Frames bigger than this can't be held in a byte array.
+	 */
+	public static final long MAX_PAYLOAD_SIZE = Integer.MAX_VALUE - 8;
+
+	/**
+	 * The biggest header: 64-bit payload length and masking key.
+	 */
+	public static final int MAX_HEADER_SIZE = 14;
+
+	private FrameCodec() {
+	}
+
+	/**
+	 * @param opcode - the opcode as the JWebSocket constants ("0001", "1000"...)
+	 * @return the numeric value of the opcode
+	 */
+	public static int opcodeValue(String opcode) {
+		return Integer.parseInt(opcode, 2);
+	}
+
+	/**
+	 * @param opcode - the numeric value of the opcode
+	 * @return the opcode as the JWebSocket constants ("0001", "1000"...)
+	 */
+	public static String opcodeBits(int opcode) {
+		switch (opcode & 0xF) {
+		case 0x0: return JWebSocket.CONTINUOUS_MSG_OPCODE;
+		case 0x1: return JWebSocket.TEXT_OPCODE;
+		case 0x2: return JWebSocket.BINARY_OPCODE;
+		case 0x8: return JWebSocket.CLOSE_CONNECTION_OPCODE;
+		case 0x9: return JWebSocket.PING_OPCODE;
+		case 0xA: return JWebSocket.PONG_OPCODE;
+		default:
+			String bits = Integer.toBinaryString(opcode & 0xF);
+			while (bits.length() < 4)
+				bits = "0".concat(bits);
+			return bits;
+		}
+	}
+
+	/**
+	 * @param payloadLength - size of the payload
+	 * @param masked - if there will be a masking key
+	 * @return the size of the frame header
+	 */
+	public static int headerSize(long payloadLength, boolean masked) {
+		int size = payloadLength <= 125 ? 2 : payloadLength <= 0xFFFF ? 4 : 10;
+		return masked ? size + 4 : size;
+	}
+
+	/**
+	 * Create a frame with the whole payload.
+	 * @param payload - the data of the frame
+	 * @param opcode - the numeric value of the opcode
+	 * @param fin - if this is the last frame of the message
+	 * @param mask - the masking key (client frames), or null (server frames MUST NOT be masked)
+	 * @return the frame
+	 */
+	public static byte[] encode(byte[] payload, int opcode, boolean fin, Integer mask) {
+		byte[] frame = new byte[headerSize(payload.length, mask != null) + payload.length];
+		ByteBuffer buffer = ByteBuffer.wrap(frame);
+		encode(buffer, payload, 0, payload.length, opcode, fin, mask);
+		return frame;
+	}
+
+	/**
+	 * Write a frame in the buffer, which must have room for the header and the payload.
+	 * @param buffer - where the frame will be written
+	 * @param payload - the data of the frame
+	 * @param offset - first byte of the payload
+	 * @param length - size of the payload
+	 * @param opcode - the numeric value of the opcode
+	 * @param fin - if this is the last frame of the message
+	 * @param mask - the masking key (client frames), or null
+	 */
+	public static void encode(ByteBuffer buffer, byte[] payload, int offset, int length, int opcode, boolean fin,
+			Integer mask) {
+		encodeHeader(buffer, length, opcode, fin, mask);
+
+		if (mask == null) {
+			buffer.put(payload, offset, length);
+			return;
+		}
+
+		int key = mask.intValue();
+		byte[] bkey = new byte[] { (byte) (key >>> 24), (byte) (key >>> 16), (byte) (key >>> 8), (byte) key };
+		for (int i = 0; i < length; i++) {
+			buffer.put((byte) (payload[offset + i] ^ bkey[i & 0x3]));
+		}
+	}
+
+	/**
+	 * Write only the header of a frame (including the masking key, if any), the payload
+	 * must be written after it.
+	 * @param buffer - where the header will be written
+	 * @param length - size of the payload
+	 * @param opcode - the numeric value of the opcode
+	 * @param fin - if this is the last frame of the message
+	 * @param mask - the masking key (client frames), or null
+	 */
+	public static void encodeHeader(ByteBuffer buffer, long length, int opcode, boolean fin, Integer mask) {
+		buffer.put((byte) ((fin ? 0x80 : 0) | (opcode & 0xF)));
+
+		int maskBit = mask != null ? 0x80 : 0;
+		if (length <= 125) {
+			buffer.put((byte) (maskBit | (int) length));
+		} else if (length <= 0xFFFF) {
+			// 126 - the next 16 bits are the length
+			buffer.put((byte) (maskBit | 126));
+			buffer.putShort((short) length);
+		} else {
+			// 127 - the next 64 bits are the length
+			buffer.put((byte) (maskBit | 127));
+			buffer.putLong(length);
+		}
+
+		if (mask != null)
+			buffer.putInt(mask.intValue());
+	}
+
+	/**
+	 * Read the payload length of the next frame in the buffer, without consuming anything,
+	 * so a frame too big can be refused before its payload is received.
+	 * @param buffer - the bytes received, ready to be read
+	 * @return the length, or -1 if the header isn't complete yet
+	 * @throws IllegalStateException - if the length is invalid
+	 */
+	public static long payloadLength(ByteBuffer buffer) {
+		if (buffer.remaining() < 2)
+			return -1;
+
+		/*
+		 * If the payload len is between 0 and 125, this is the length of the
+		 * message. If it is 126, the following 2 bytes (16-bit unsigned integer), if
+		 * 127, the following 8 bytes (64-bit unsigned integer, the most significant bit
+		 * MUST be 0) are the length.
+		 */
+		int start = buffer.position();
+		long length = buffer.get(start + 1) & 0x7F;
+		if (length == 126) {
+			if (buffer.remaining() < 4)
+				return -1;
+			length = buffer.getShort(start + 2) & 0xFFFF;
+		} else if (length == 127) {
+			if (buffer.remaining() < 10)
+				return -1;
+			length = buffer.getLong(start + 2);
+			if (length < 0)
+				throw new IllegalStateException("The most significant bit of the payload length MUST be 0");
+		}
+		return length;
+	}
+
+	/**
+	 * Read a frame from the buffer. When the buffer doesn't have the whole frame yet,
+	 * nothing is consumed and null is returned, so the caller can read more bytes from
+	 * the network and try again.
+	 * @param buffer - the bytes received, ready to be read
+	 * @return the frame, or null if it isn't complete
+	 * @throws IllegalStateException - if the payload length is invalid or too big
+	 */
+	public static Frame decode(ByteBuffer buffer) {
+		return decode(buffer, true);
+	}
+
+	/**
+	 * Read a frame from the buffer, like decode(buffer), but the payload can be left
+	 * masked to be unmasked later by the frame (see Frame.unmask).
+	 * @param buffer - the bytes received, ready to be read
+	 * @param unmask - unmask the payload now
+	 * @return the frame, or null if it isn't complete
+	 * @throws IllegalStateException - if the payload length is invalid or too big
+	 */
+	public static Frame decode(ByteBuffer buffer, boolean unmask) {
+		long length = payloadLength(buffer);
+		if (length == -1)
+			return null;
+
+		int start = buffer.position();
+		int b0 = buffer.get(start) & 0xFF, b1 = buffer.get(start + 1) & 0xFF;
+		boolean masked = (b1 & 0x80) != 0;
+		int header = ((b1 & 0x7F) == 126 ? 4 : (b1 & 0x7F) == 127 ? 10 : 2) + (masked ? 4 : 0);
+
+		if (length > MAX_PAYLOAD_SIZE)
+			throw new IllegalStateException("Frame too big: " + length + " bytes");
+
+		if (buffer.remaining() < header + length)
+			return null;
+
+		byte[] payload = new byte[(int) length];
+		buffer.position(start + header);
+		buffer.get(payload);
+
+		byte[] bkey = null;
+		if (masked) {
+			int keyPos = start + header - 4;
+			bkey = new byte[] { buffer.get(keyPos), buffer.get(keyPos + 1), buffer.get(keyPos + 2),
+					buffer.get(keyPos + 3) };
+		}
+
+		Frame frame = new Frame((b0 & 0x80) != 0, (b0 >> 4) & 0x7, b0 & 0xF, payload, bkey);
+		if (unmask)
+			frame.unmask();
+		return frame;
+	}
+
+}
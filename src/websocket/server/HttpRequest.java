@@ -0,0 +1,228 @@
+package websocket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The HTTP request sent by the browser before the WebSocket connection: usually the
+ * handshake (GET with Upgrade: websocket), but it can also be a plain GET.
+ *
+ * The request is read in chunks until the empty line that ends the headers. Any byte
+ * received after that line is not part of the request, it is kept in getRemaining() to
+ * be read as the first bytes of the connection.
+ */
+public class HttpRequest {
+
+	/**
+	 * A bigger request is refused, it is not a handshake.
+	 */
+	public static final int MAX_REQUEST_SIZE = 16 * 1024;
+
+	/**
+	 * The request is complete but can't be understood, it is answered with 400 Bad Request.
+	 */
+	public static class BadRequestException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		public BadRequestException(String message) {
+			super(message);
+		}
+	}
+
+	private final String method, target, path, version;
+	private final Map<String, String> headers, queryParameters;
+	private final byte[] remaining;
+
+	private HttpRequest(String method, String target, String version, Map<String, String> headers,
+			byte[] remaining) throws BadRequestException {
+		this.method = method;
+		this.target = target;
+		this.version = version;
+		this.headers = headers;
+		this.remaining = remaining;
+
+		int query = target.indexOf('?');
+		this.path = query >= 0 ? target.substring(0, query) : target;
+		this.queryParameters = new HashMap<String, String>();
+		if (query >= 0) {
+			for (String pair : target.substring(query + 1).split("&")) {
+				if (pair.isEmpty())
+					continue;
+				int equals = pair.indexOf('=');
+				String name = equals >= 0 ? pair.substring(0, equals) : pair;
+				String value = equals >= 0 ? pair.substring(equals + 1) : "";
+				this.queryParameters.put(decode(name), decode(value));
+			}
+		}
+	}
+
+	/**
+	 * Read a request from the stream, blocking until the headers are complete.
+	 * @param in - the stream of the socket
+	 * @return the request, or null if the stream ended before any byte
+	 * @throws IOException - when the request is invalid, too big, or the socket fails
+	 */
+	public static HttpRequest read(InputStream in) throws IOException {
+		return read(in, new byte[0]);
+	}
+
+	/**
+	 * Read a request from the stream, starting with bytes already received (the
+	 * remaining bytes of a previous request in a keep-alive connection).
+	 * @param in - the stream of the socket
+	 * @param received - bytes already read from the stream
+	 * @return the request, or null if the stream ended before any byte
+	 * @throws IOException - when the request is invalid, too big, or the socket fails
+	 */
+	public static HttpRequest read(InputStream in, byte[] received) throws IOException {
+		byte[] data = new byte[Math.max(1024, received.length)];
+		System.arraycopy(received, 0, data, 0, received.length);
+		int size = received.length, end;
+
+		while ((end = endOfHeaders(data, size)) < 0) {
+			if (size == MAX_REQUEST_SIZE)
+				throw new IOException("HTTP request bigger than " + MAX_REQUEST_SIZE + " bytes");
+			if (size == data.length) {
+				byte[] bigger = new byte[Math.min(data.length * 2, MAX_REQUEST_SIZE)];
+				System.arraycopy(data, 0, bigger, 0, size);
+				data = bigger;
+			}
+
+			int read = in.read(data, size, data.length - size);
+			if (read == -1) {
+				if (size == 0)
+					return null;
+				throw new IOException("Connection closed in the middle of the HTTP request");
+			}
+			size += read;
+		}
+
+		String[] lines = new String(data, 0, end, "UTF-8").split("\r\n");
+		String[] requestLine = lines[0].split(" ");
+		if (requestLine.length != 3)
+			throw new BadRequestException("Invalid HTTP request line: " + lines[0]);
+
+		Map<String, String> headers = new HashMap<String, String>();
+		for (int i = 1; i < lines.length; i++) {
+			int colon = lines[i].indexOf(':');
+			if (colon <= 0)
+				continue;
+			headers.put(lines[i].substring(0, colon).trim().toLowerCase(), lines[i].substring(colon + 1).trim());
+		}
+
+		byte[] remaining = new byte[size - end - 4];
+		System.arraycopy(data, end + 4, remaining, 0, remaining.length);
+		return new HttpRequest(requestLine[0], requestLine[1], requestLine[2], headers, remaining);
+	}
+
+	/**
+	 * Decode the path of the target, or a segment of it. Unlike decode, a '+' stays a '+':
+	 * only the query encodes spaces that way.
+	 * @param encoded - the path with %XX escapes
+	 * @return the decoded path
+	 * @throws BadRequestException - when an escape is invalid
+	 */
+	public static String decodePath(String encoded) throws BadRequestException {
+		return decode(encoded.replace("+", "%2B"));
+	}
+
+	/**
+	 * Decode a name or a value of the query, where '+' is a space.
+	 * @param encoded - the text with %XX escapes
+	 * @return the decoded text
+	 * @throws BadRequestException - when an escape is invalid
+	 */
+	public static String decode(String encoded) throws BadRequestException {
+		try {
+			return URLDecoder.decode(encoded, "UTF-8");
+		} catch (IllegalArgumentException e) {
+			throw new BadRequestException("Invalid escape in " + encoded);
+		} catch (UnsupportedEncodingException e) {
+			// UTF-8 is always supported
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static int endOfHeaders(byte[] data, int size) {
+		for (int i = 0; i + 3 < size; i++) {
+			if (data[i] == '\r' && data[i + 1] == '\n' && data[i + 2] == '\r' && data[i + 3] == '\n')
+				return i;
+		}
+		return -1;
+	}
+
+	public String getMethod() {
+		return this.method;
+	}
+
+	/**
+	 * @return the path and the query string, as in the request line
+	 */
+	public String getTarget() {
+		return this.target;
+	}
+
+	/**
+	 * @return the path, without the query string
+	 */
+	public String getPath() {
+		return this.path;
+	}
+
+	public String getVersion() {
+		return this.version;
+	}
+
+	/**
+	 * @param name - the name of the header, case insensitive
+	 * @return the value of the header, or null
+	 */
+	public String getHeader(String name) {
+		return this.headers.get(name.toLowerCase());
+	}
+
+	/**
+	 * @param name - the name of the cookie
+	 * @return the value of the cookie sent in the Cookie header, or null
+	 */
+	public String getCookie(String name) {
+		String cookies = this.getHeader("Cookie");
+		if (cookies == null)
+			return null;
+		for (String cookie : cookies.split(";")) {
+			int equals = cookie.indexOf('=');
+			if (equals > 0 && cookie.substring(0, equals).trim().equals(name))
+				return cookie.substring(equals + 1).trim();
+		}
+		return null;
+	}
+
+	public String getQueryParameter(String name) {
+		return this.queryParameters.get(name);
+	}
+
+	public Map<String, String> getQueryParameters() {
+		return Collections.unmodifiableMap(this.queryParameters);
+	}
+
+	/**
+	 * @return true if it is a WebSocket handshake
+	 */
+	public boolean isUpgrade() {
+		String upgrade = this.getHeader("Upgrade");
+		return "GET".equals(this.method) && upgrade != null && upgrade.equalsIgnoreCase("websocket");
+	}
+
+	/**
+	 * @return the bytes received after the end of the request
+	 */
+	public byte[] getRemaining() {
+		return this.remaining;
+	}
+
+}
@@ -0,0 +1,171 @@
+package websocket;
+
+import java.util.ArrayDeque;
+
+/**
+ * Bounded queue of the messages received from a client, waiting to be interpreted.
+ *
+ * When the queue reaches the high watermark, put blocks the thread that reads the socket,
+ * so the socket is not read anymore and TCP slows the client down. It is released only
+ * when the queue goes down to the low watermark, so the reading doesn't start and stop
+ * at each message.
+ *
+ * When the connection ends the queue is closed: put doesn't wait anymore and the messages
+ * already queued can still be taken.
+ */
+public class InboundQueue {
+
+	public static class Message {
+		private final String opcode;
+		private final byte[] payload;
+		private final long receivedAt, trace;
+
+		Message(String opcode, byte[] payload, long trace) {
+			this.opcode = opcode;
+			this.payload = payload;
+			this.receivedAt = System.nanoTime();
+			this.trace = trace;
+		}
+
+		public String getOpcode() {
+			return this.opcode;
+		}
+
+		public byte[] getPayload() {
+			return this.payload;
+		}
+
+		/**
+		 * @return System.nanoTime() when the message was put in the queue
+		 */
+		public long getReceivedAt() {
+			return this.receivedAt;
+		}
+
+		/**
+		 * @return the trace id of the message (see MessageTracer.sample), 0 if it isn't traced
+		 */
+		public long getTrace() {
+			return this.trace;
+		}
+	}
+
+	private final ArrayDeque<Message> queue;
+	private final int highWatermark, lowWatermark;
+	private boolean paused, closed;
+	private long pauses;
+
+	/**
+	 * @param highWatermark - size of the queue that pauses the reading
+	 * @param lowWatermark - size of the queue that resumes the reading
+	 */
+	public InboundQueue(int highWatermark, int lowWatermark) {
+		if (highWatermark <= 0 || lowWatermark < 0 || lowWatermark >= highWatermark)
+			throw new IllegalArgumentException("Watermarks must be 0 <= low < high");
+
+		this.queue = new ArrayDeque<Message>();
+		this.highWatermark = highWatermark;
+		this.lowWatermark = lowWatermark;
+	}
+
+	/**
+	 * Put a message that isn't traced in the queue.
+	 * @see #put(String, byte[], long)
+	 */
+	public boolean put(String opcode, byte[] payload) throws InterruptedException {
+		return this.put(opcode, payload, 0);
+	}
+
+	/**
+	 * Put a message in the queue, waiting while the reading is paused.
+	 * @param opcode - the opcode of the message
+	 * @param payload - the data of the message
+	 * @param trace - the trace id of the message, 0 if it isn't traced
+	 * @return false if the queue is closed, the message is dropped
+	 * @throws InterruptedException
+	 */
+	public synchronized boolean put(String opcode, byte[] payload, long trace) throws InterruptedException {
+		if (this.queue.size() >= this.highWatermark && !this.paused) {
+			this.paused = true;
+			this.pauses++;
+		}
+		while (this.paused && !this.closed) {
+			this.wait();
+		}
+		if (this.closed)
+			return false;
+
+		this.queue.addLast(new Message(opcode, payload, trace));
+		this.notifyAll();
+		return true;
+	}
+
+	/**
+	 * Take the next message, waiting for it at most the given time.
+	 * @param timeout - maximum time to wait, in milliseconds
+	 * @return the message, or null if the queue is still empty
+	 * @throws InterruptedException
+	 */
+	public synchronized Message poll(long timeout) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeout;
+		while (this.queue.isEmpty()) {
+			if (this.closed)
+				return null;
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0)
+				return null;
+			this.wait(remaining);
+		}
+
+		Message message = this.queue.pollFirst();
+		if (this.paused && this.queue.size() <= this.lowWatermark) {
+			this.paused = false;
+			this.notifyAll();
+		}
+		return message;
+	}
+
+	/**
+	 * Stop accepting messages and wake up the threads waiting in put and poll.
+	 */
+	public synchronized void close() {
+		this.closed = true;
+		this.notifyAll();
+	}
+
+	/**
+	 * Accept messages again, for a new connection. The messages left are discarded.
+	 */
+	public synchronized void reopen() {
+		this.queue.clear();
+		this.paused = false;
+		this.closed = false;
+	}
+
+	public synchronized boolean isClosed() {
+		return this.closed;
+	}
+
+	public synchronized int size() {
+		return this.queue.size();
+	}
+
+	public synchronized boolean isEmpty() {
+		return this.queue.isEmpty();
+	}
+
+	/**
+	 * @return true if the reading is paused now
+	 */
+	public synchronized boolean isPaused() {
+		return this.paused;
+	}
+
+	/**
+	 * @return how many times the reading was paused
+	 */
+	public synchronized long getPauseCount() {
+		return this.pauses;
+	}
+
+}
@@ -1,17 +1,31 @@
 package websocket;
 
-import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
-import javax.xml.bind.DatatypeConverter;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * This is a simple implementation of RFC6455 - WebSockets.
@@ -37,6 +51,7 @@ public abstract class JWebSocket {
 			BINARY_OPCODE = "0010", PING_OPCODE = "1001", PONG_OPCODE = "1010",
 			CLOSE_CONNECTION_OPCODE = "1000";
 	protected static final int PING_NOT_SENT_TOLERANCE = 8;
+	private static final int MAX_READ_TIMEOUT = 1000, MIN_READ_SIZE = 4096;
 	
 	private byte[] pingContent;
 	private int pingNotSent, pingPckgSize;
@@ -44,10 +59,56 @@ public abstract class JWebSocket {
 	private boolean keepPinging;
 	
 	private Socket client;
+	// the channel of the client, non-blocking after the handshake (null for a plain socket)
+	private volatile SocketChannel channel;
+	private Selector readSelector, writeSelector;
 	private ServerSocket server;
+	private HttpRequest request;
+	private Map<String, String> pathParameters;
+	
+	// volatile: cleared by the connection that takes the session over
+	private volatile ReplayBuffer replayBuffer;
+	private long outboundSequence;
+	private long resumeSequence;
+	private SessionStore sessionStore;
+	private SessionStore.Session session;
+	private boolean sessionCreated;
+	
+	private MessageJournal journal;
+	private OutboundQueue outboundQueue;
+	private RateLimiter.Limits rateLimits;
+	private InboundQueue inboundQueue;
+	private ConnectionRegistry registry;
+	private long connectionId = -1;
+	private MessageTracer tracer;
+	// the trace id of the fragmented message being received
+	private long inboundTrace;
+	private final AtomicReference<JWebSocketConfig> pendingConfig = new AtomicReference<JWebSocketConfig>();
+	private long idleTimeout;
+	private long maxMessageSize = JWebSocketConfig.defaults().getMaxMessageSize();
+	private volatile int fragmentSize = JWebSocketConfig.defaults().getFragmentSize();
+	private int smallMessageSize = JWebSocketConfig.defaults().getSmallMessageSize();
+	// a fair lock, so a control frame waiting for it is written before the next fragment
+	private final ReentrantLock frameLock = new ReentrantLock(true);
+	// the frames of a data message can't be mixed with the frames of another one
+	private final Object messageLock = new Object();
+	private String fragmentedOpcode;
+	private ByteBuffer fragments;
+	
+	private final Map<String, Subprotocol<?>> subprotocols = new LinkedHashMap<String, Subprotocol<?>>();
+	private Subprotocol<?> subprotocol;
+	private BufferPool bufferPool;
+	
+	private final Object closeLock = new Object();
+	private volatile boolean closing;
+	private boolean peerClosed;
 
 	protected abstract void onServerStarted(ServerSocket server);
 
+	/**
+	 * @param client - the socket of the connection; with conflation it is in non-blocking
+	 * mode (see enableConflation), so its streams can't be used: send with the send methods
+	 */
 	protected abstract void clientConnected(Socket client);
 
 	protected abstract void clientDisconnected();
@@ -56,6 +117,23 @@ public abstract class JWebSocket {
 
 	protected abstract void interpretClientBinaryMessage(byte[] decoded_data);
 	
+	/**
+	 * A codec registered for a subprotocol, with the handler of its messages.
+	 */
+	private static class Subprotocol<T> {
+		private final MessageCodec<T> codec;
+		private final MessageHandler<T> handler;
+
+		Subprotocol(MessageCodec<T> codec, MessageHandler<T> handler) {
+			this.codec = codec;
+			this.handler = handler;
+		}
+
+		void dispatch(ByteBuffer payload) throws IOException {
+			this.handler.onMessage(this.codec.decode(payload));
+		}
+	}
+	
 	public JWebSocket() {
 		this.keepPinging = true;
 		this.pingInterval = 5000;
@@ -88,27 +166,38 @@ public abstract class JWebSocket {
 		this.pingNotSent = 0;
 	}
 	
+	public JWebSocket(JWebSocketConfig config) {
+		this(config.isPingEnabled(), config.getPingInterval(), config.getPingSize());
+		this.applyConfig(config);
+	}
+	
+	/**
+	 * @return the socket of the connection; with conflation it is in non-blocking mode (see
+	 * enableConflation), so its streams can't be used: send with the send methods
+	 */
 	protected Socket getClient() {
 		return this.client;
 	}
+	
+	/**
+	 * @return the handshake request of the client
+	 */
+	protected HttpRequest getRequest() {
+		return this.request;
+	}
+	
+	/**
+	 * @return the parameters taken from the handshake path by the JWebSocketRouter,
+	 * like "room" in /chat/{room}. It is empty when started by start(port).
+	 */
+	protected Map<String, String> getPathParameters() {
+		return this.pathParameters;
+	}
 
 	protected void sendTextMessage(String text_answer) {
-		if (client == null) {
-			// TODO: return some kind of error
-			return;
-		}
-
-		if (!client.isConnected()) {
-			// TODO: report client isn't connected anymore error
-			return;
-		}
-
 		try {
 			byte[] text_answer_bytes = text_answer.getBytes("UTF-8");
-			byte[] response_frame = createResponseFrame(text_answer_bytes, TEXT_OPCODE);
-			OutputStream out = client.getOutputStream();
-
-			out.write(response_frame);
+			this.writeFrame(null, text_answer_bytes, TEXT_OPCODE);
 		} catch (IOException ex) {
 			// TODO: report writing error
 			ex.printStackTrace();
@@ -116,27 +205,55 @@ public abstract class JWebSocket {
 	}
 
 	protected void sendBinaryMessage(byte[] binary_answer_bytes) {
-		if (client == null) {
-			// TODO: return some kind of error
-			return;
+		try {
+			this.writeFrame(null, binary_answer_bytes, BINARY_OPCODE);
+		} catch (IOException ex) {
+			// TODO: Report writing error
+			ex.printStackTrace();
 		}
-
-		if (!client.isConnected()) {
-			// TODO: report client isn't connected anymore error
-			return;
+	}
+	
+	/**
+	 * Send a text message that can be replaced by a newer message with the same key,
+	 * while it is still waiting to be written (see enableConflation).
+	 * Without conflation it is the same as sendTextMessage(text_answer).
+	 * @param key - identifies the state being updated by the message
+	 * @param text_answer - the message
+	 */
+	protected void sendTextMessage(Object key, String text_answer) {
+		try {
+			byte[] text_answer_bytes = text_answer.getBytes("UTF-8");
+			this.writeFrame(key, text_answer_bytes, TEXT_OPCODE);
+		} catch (IOException ex) {
+			this.writeFailed();
 		}
+	}
 
+	/**
+	 * Send a binary message that can be replaced by a newer message with the same key,
+	 * while it is still waiting to be written (see enableConflation).
+	 * Without conflation it is the same as sendBinaryMessage(binary_answer_bytes).
+	 * @param key - identifies the state being updated by the message
+	 * @param binary_answer_bytes - the message
+	 */
+	protected void sendBinaryMessage(Object key, byte[] binary_answer_bytes) {
 		try {
-			byte[] response_frame = createResponseFrame(binary_answer_bytes, BINARY_OPCODE);
-			OutputStream out = client.getOutputStream();
-
-			out.write(response_frame);
+			this.writeFrame(key, binary_answer_bytes, BINARY_OPCODE);
 		} catch (IOException ex) {
-			// TODO: Report writing error
-			ex.printStackTrace();
+			this.writeFailed();
 		}
 	}
 	
+	/**
+	 * A message couldn't be written, so the client is gone: close the connection, as the
+	 * writer thread does.
+	 */
+	private void writeFailed() {
+		if (this.client != null && !this.client.isClosed())
+			System.out.println("Error when trying to write to the client!!!");
+		this.stop();
+	}
+	
 	/**
 	 * Here you can send a message and specify the type of message for your self.
 	 * For more details see RFC 6455:
@@ -162,21 +279,8 @@ public abstract class JWebSocket {
 	 * @throws IOException - May we get a error when trying to send a message to client
 	 */
 	protected void sendMessage(byte[] message_data, String opcode) throws IOException {
-		if (client == null) {
-			// TODO: return some kind of error
-			return;
-		}
-
-		if (!client.isConnected()) {
-			// TODO: report client isn't connected anymore error
-			return;
-		}
-
 		try {
-			byte[] response_frame = createResponseFrame(message_data, opcode);
-			OutputStream out = client.getOutputStream();
-
-			out.write(response_frame);
+			this.writeFrame(null, message_data, opcode);
 		} catch (IOException ex) {
 			// TODO: report writing error
 			ex.printStackTrace();
@@ -184,362 +288,1349 @@ public abstract class JWebSocket {
 	}
 	
 	/**
-	 * Start a new WebSocket server and list the given port.
-	 * It will keep alive until it receive a CLOSE_CONNECTION opcode, or
-	 * some error happen.
-	 * @param port
+	 * Encode the frame and write it to the client, or put it in the outbound queue
+	 * when conflation is enabled.
 	 */
-	public void start(int port) {
-		try {
-			this.server = new ServerSocket(port);
-
-			this.onServerStarted(this.server);
-			this.client = this.server.accept();
+	private void writeFrame(Object key, byte[] message_data, String opcode) throws IOException {
+		this.sendFrame(key, message_data, opcode, null, this.newTrace());
+	}
+	
+	/**
+	 * Write a message, or put it in the outbound queue. A text or binary message bigger than
+	 * the fragment size (see JWebSocketConfig) is written in fragments, and the control frames
+	 * can be written between them, so a ping or a close never waits for a whole big message.
+	 * It is used by JWebSocketRouter to encode a broadcast once for every connection.
+	 * @param frame - the message already encoded in one frame, or null to encode it here
+	 */
+	void sendFrame(Object key, byte[] message_data, String opcode, byte[] frame) throws IOException {
+		this.sendFrame(key, message_data, opcode, frame, this.newTrace());
+	}
+	
+	/**
+	 * @param trace - the trace id of the message (see MessageTracer.sample), 0 if it isn't traced
+	 */
+	private void sendFrame(Object key, byte[] message_data, String opcode, byte[] frame, long trace)
+			throws IOException {
+		int fragmentSize = this.fragmentSize(message_data.length, opcode);
+		if (frame == null && fragmentSize == 0) {
+			long traceStart = traceStart(trace);
+			frame = createResponseFrame(message_data, opcode);
+			this.traceEnd(MessageTracer.Stage.ENCODE, trace, traceStart);
+		}
 
-			if (!this.handshake()) {
-				this.stop();
+		if (this.outboundQueue != null) {
+			Socket client = this.client;
+			// a fragmented message always goes through the queue, where the control frames
+			// can pass its fragments, and only a non-blocking channel can be written here
+			if (fragmentSize > 0 || client == null || client.isClosed() || this.channel == null
+					|| !this.outboundQueue.tryWriteDirectly()) {
+				this.outboundQueue.offer(key, opcode, message_data, frame, fragmentSize, trace);
 				return;
 			}
 
-			clientConnected(client);
-
-			InputStream in = this.client.getInputStream();
-			OutputStream out;
-
-			while (!this.client.isClosed()) {
-				in = this.client.getInputStream();
-				if (in.available() == 0) {
-					if (this.shouldPing()) {
-						this.pingClient();
-					} else {
-						continue;						
-					}
-				}
-				BufferedInputStream bis = new BufferedInputStream(in);
-
-				int reader_size = in.available();
-				byte[] read = new byte[reader_size];
-				if (bis.read(read) == -1) {
-					continue;
-				}
-
-				byte bframe_bits = read[0];
-				String sframe_bits = get_binary(bframe_bits);
-				if (sframe_bits.length() == 32)
-					sframe_bits = sframe_bits.substring(24);
-				/*
-				 * First byte:
-				 * 
-				 * FIN: 1 bit
-				 * 
-				 * Indicates that this is the final fragment in a message. The first fragment
-				 * MAY also be the final fragment.
-				 * 
-				 * RSV1, RSV2, RSV3: 1 bit each
-				 * 
-				 * MUST be 0 unless an extension is negotiated that defines meanings for
-				 * non-zero values. If a nonzero value is received and none of the negotiated
-				 * extensions defines the meaning of such a nonzero value, the receiving
-				 * endpoint MUST _Fail the WebSocket Connection_.
-				 */
-				boolean bFin = sframe_bits.startsWith("1"), bRsv1 = sframe_bits.charAt(1) == '0',
-						bRsv2 = sframe_bits.charAt(2) == '0', bRsv3 = sframe_bits.charAt(3) == '0';
-
-				byte[] decoded_data = null;
-				if (bFin) {
-					decoded_data = readData(read);
-				} else {
-					// TODO: implement a continuous message (when bFin = False)
-				}
-				/*
-				 * 
-				 * 
-				 * Opcode: 4 bits
-				 * 
-				 * Defines the interpretation of the "Payload data". If an unknown opcode is
-				 * received, the receiving endpoint MUST _Fail the WebSocket Connection_. The
-				 * following values are defined.
-				 * 
-				 * %x0 denotes a continuation frame
-				 * 
-				 * %x1 denotes a text frame
-				 * 
-				 * %x2 denotes a binary frame
-				 * 
-				 * %x3-7 are reserved for further non-control frames
-				 * 
-				 * %x8 denotes a connection close
-				 * 
-				 * %x9 denotes a ping
-				 * 
-				 * %xA denotes a pong
-				 * 
-				 * %xB-F are reserved for further control frames
-				 */
-				String opcode_bits = sframe_bits.substring(4);
-
-				switch (opcode_bits) {
-				case CONTINUOUS_MSG_OPCODE:
-					break;
-				case TEXT_OPCODE:
-					String text_decoded_data = new String(decoded_data);
-
-					// subprotocol
-					interpretClientTextMessage(text_decoded_data);
-
-					break;
-				case BINARY_OPCODE:
-
-					// subprotocol
-					interpretClientBinaryMessage(decoded_data);
+			// nothing waiting to be written, so the handoff to the writer thread is skipped
+			try {
+				this.transmitDirectly(message_data, opcode, frame, trace);
+			} finally {
+				this.outboundQueue.writtenDirectly();
+			}
+			return;
+		}
 
-					break;
-				case CLOSE_CONNECTION_OPCODE:
-					this.stop();
-					break;
-				case PING_OPCODE:
-					this.sendMessage(decoded_data, PONG_OPCODE);
-					break;
-				case PONG_OPCODE:
-					if (this.pingContent != null) {
-						String sPingContent = new String(this.pingContent, "UTF-8");
-						String sPongContent = new String(decoded_data, "UTF-8");
-						if(!sPingContent.equals(sPongContent)) {
-							if (this.pingNotSent < this.PING_NOT_SENT_TOLERANCE) {
-								this.pingNotSent++;
-							} else {
-								this.stop();
-							}
-						}
-					}
-					break;
+		if (fragmentSize > 0) {
+			synchronized (this.messageLock) {
+				for (int offset = 0; offset < message_data.length; offset += fragmentSize) {
+					this.transmitFragment(message_data, opcode, frame, offset,
+							Math.min(fragmentSize, message_data.length - offset), trace);
 				}
-
 			}
-
-			clientDisconnected();
-
-		} catch (Exception e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		} finally {
-			this.stop();
+		} else if (FrameCodec.opcodeValue(opcode) >= 0x8) {
+			this.transmit(message_data, opcode, frame, trace);
+		} else {
+			synchronized (this.messageLock) {
+				this.transmit(message_data, opcode, frame, trace);
+			}
 		}
 	}
 	
-	public boolean sendStopSignal() throws Exception {
-		if (getClient() != null ? !getClient().isConnected() : false)
-			throw new Exception("Client is not connected yet!");
-
-		if (getClient() != null ? getClient().isClosed() : false)
-			throw new Exception("Trying to close connection with client when it is already closed!");
-		
-		// indicates that an endpoint is "going away", such as a server
-	    //  going down or a browser having navigated away from a page.
-		this.sendMessage("1001".getBytes("UTF-8"), CLOSE_CONNECTION_OPCODE);
-
-		this.client.close();
-		this.server.close();
-		return true;
+	/**
+	 * @return the size of the fragments of the message, or 0 if it is written in one frame
+	 */
+	private int fragmentSize(int length, String opcode) {
+		int fragmentSize = this.fragmentSize;
+		if (fragmentSize == 0 || length <= fragmentSize)
+			return 0;
+		return TEXT_OPCODE.equals(opcode) || BINARY_OPCODE.equals(opcode) ? fragmentSize : 0;
 	}
 	
-	protected void stop() {
-		try {
-			this.client.close();
-			this.server.close();
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
-	}
-
-	private String randomBitMask(int leng) {
-		double rand = 0;
-		String bit;
+	/**
+	 * Write a frame to the client. Text and binary frames receive the next sequence number
+	 * and are kept in the replay buffer (when session resume is enabled), even if there is
+	 * no client connected at the moment, so they can be sent when it comes back.
+	 */
+	private void transmit(byte[] message_data, String opcode, byte[] frame, long trace) throws IOException {
+		this.recordSent(message_data, opcode, frame);
 
-		StringBuilder sb = new StringBuilder();
+		if (client == null) {
+			// TODO: return some kind of error
+			return;
+		}
 
-		for (int i = 0; i < leng; i++) {
-			rand = Math.random();
-			if (rand < 0.5)
-				bit = "0";
-			else
-				bit = "1";
-			sb.append(bit);
+		if (!client.isConnected() || client.isClosed()) {
+			// TODO: report client isn't connected anymore error
+			return;
 		}
 
-		return sb.toString();
+		this.writeToClient(frame, 0, frame.length, trace);
+		if (this.registry != null && (TEXT_OPCODE.equals(opcode) || BINARY_OPCODE.equals(opcode))) {
+			this.registry.sent(this.connectionId, frame.length);
+		}
 	}
+	
+	/**
+	 * Write a frame like transmit, but with a single non-blocking write, so the sender never
+	 * waits for a client that is not reading. What the socket doesn't take at once is put in
+	 * front of the outbound queue, and written by the writer thread before anything else.
+	 */
+	private void transmitDirectly(byte[] message_data, String opcode, byte[] frame, long trace) throws IOException {
+		this.recordSent(message_data, opcode, frame);
 
-	private boolean handshake() {
+		ByteBuffer buffer = ByteBuffer.wrap(frame);
+		this.frameLock.lock();
 		try {
-			InputStream in = client.getInputStream();
-			BufferedInputStream bis = new BufferedInputStream(in);
-			byte[] read = new byte[in.available()];
-
-			if (bis.read(read) == -1) {
-				return false;
-			}
-
-			String data = new String(read, "UTF-8");
-			Matcher get_matcher = Pattern.compile("^GET").matcher(data);
-			if (get_matcher.find()) {
-				Matcher key_matcher = Pattern.compile("Sec-WebSocket-Key: (.*)").matcher(data);
-				key_matcher.find();
-				byte[] response = ("HTTP/1.1 101 Switching Protocols\r\n" + "Connection: Upgrade\r\n"
-						+ "Upgrade: websocket\r\n" + "Sec-WebSocket-Accept: "
-						+ DatatypeConverter.printBase64Binary(MessageDigest.getInstance("SHA-1").digest(
-								(key_matcher.group(1) + "258EAFA5-E914-47DA-95CA-C5AB0DC85B11").getBytes("UTF-8")))
-						+ "\r\n\r\n").getBytes("UTF-8");
-				OutputStream out = client.getOutputStream();
-				out.write(response, 0, response.length);
-				return true;
+			long traceStart = traceStart(trace);
+			this.channel.write(buffer);
+			if (buffer.hasRemaining()) {
+				// the write is traced when the writer thread ends it
+				this.outboundQueue.offerRemainder(Arrays.copyOfRange(frame, buffer.position(), frame.length), trace);
 			} else {
-				return false;
+				this.traceEnd(MessageTracer.Stage.WRITE, trace, traceStart);
 			}
-		} catch (IOException e1) {
-			System.out.println("Error when trying to read handshake data!!!");
-			return false;
-		} catch (NoSuchAlgorithmException e) {
-			System.out.println("SHA-1 hasn't been found to digest message!!!");
-			return false;
+		} finally {
+			this.frameLock.unlock();
+		}
+		if (this.registry != null && (TEXT_OPCODE.equals(opcode) || BINARY_OPCODE.equals(opcode))) {
+			this.registry.sent(this.connectionId, frame.length);
 		}
-
 	}
+	
+	/**
+	 * Write a fragment of a message, like transmit does with a whole frame. The message is
+	 * kept in the journal and in the replay buffer (in one frame), and counted in the
+	 * registry, with its first fragment.
+	 * @param frame - the message in one frame, or null if it wasn't encoded
+	 * @param offset - first byte of the fragment in the payload
+	 * @param length - size of the fragment
+	 */
+	private void transmitFragment(byte[] message_data, String opcode, byte[] frame, int offset, int length,
+			long trace) throws IOException {
+		boolean first = offset == 0, last = offset + length == message_data.length;
+		if (first) {
+			this.recordSent(message_data, opcode, frame);
+		}
 
-	private String get_binary(int arg0) {
-		String bits = Integer.toBinaryString(arg0);
-		int size = bits.length();
-		if (size > 8) {
-			bits = bits.substring(size - 8, size);
+		if (client == null || !client.isConnected() || client.isClosed()) {
+			// no client to write to: the message is already in the replay buffer, when there is one
+			return;
 		}
-		return bits;
-	}
 
-	private byte[] createResponseFrame(byte[] data_bytes, String opcode) {
+		BufferPool pool = this.bufferPool != null ? this.bufferPool : BufferPool.shared();
+		ByteBuffer buffer = pool.acquire(FrameCodec.headerSize(length, false) + length);
 		try {
+			long traceStart = traceStart(trace);
+			FrameCodec.encode(buffer, message_data, offset, length,
+					FrameCodec.opcodeValue(first ? opcode : CONTINUOUS_MSG_OPCODE), last, null);
+			this.traceEnd(MessageTracer.Stage.ENCODE, trace, traceStart);
+			this.writeToClient(buffer.array(), 0, buffer.position(), trace);
+		} finally {
+			pool.release(buffer);
+		}
 
-			boolean use_mask = false; // server MUST NOT mask its frames
-
-			String frame_header = "";
-
-			String fin = "1", rsv1 = "0", rsv2 = "0", rsv3 = "0";
-
-			frame_header = frame_header.concat(fin).concat(rsv1).concat(rsv2).concat(rsv3).concat(opcode);
-
-			if (use_mask)
-				frame_header = frame_header.concat("1");
-			else
-				frame_header = frame_header.concat("0");
-
-			int data_size = data_bytes.length, padding_zeros;
-			if (data_size <= 125) {
-				padding_zeros = 7;
-			} else if (data_size <= 65536) {
-				padding_zeros = 16;
-				frame_header = frame_header.concat("1111110"); // 126 - Indicates the client the he needs to read the
-																// next 16 bits
-			} else {
-				padding_zeros = 64;
-				frame_header = frame_header.concat("1111111"); // 127 - Indicates the client the he needs to read the
-																// next 64 bits
-			}
-
-			String leng_bits = Integer.toBinaryString(data_size);
-
-			for (int i = leng_bits.length(); i < padding_zeros; i++) {
-				leng_bits = "0".concat(leng_bits);
-			}
-			frame_header = frame_header.concat(leng_bits);
-
-			byte[] mask_bytes = null;
-			if (use_mask) {
-				int mask_size = 32;
-				String mask = randomBitMask(mask_size);
-				frame_header = frame_header.concat(mask);
-				mask_bytes = new byte[mask_size / 8];
-				for (int i = 0; i < mask_size; i += 8) {
-					mask_bytes[i / 8] = (byte) Integer.parseUnsignedInt(mask.substring(i, i + 8), 2);
-				}
-			}
-
-			byte[] bframe_header = new byte[frame_header.length() / 8];
-			for (int i = 0; i < frame_header.length(); i += 8) {
-				bframe_header[i / 8] = (byte) Integer.parseUnsignedInt(frame_header.substring(i, i + 8), 2);
-			}
+		if (first && this.registry != null) {
+			// every fragment but the last one has the size of the first
+			int fragments = (message_data.length + length - 1) / length;
+			int lastLength = message_data.length - (fragments - 1) * length;
+			this.registry.sent(this.connectionId, message_data.length
+					+ (fragments - 1) * FrameCodec.headerSize(length, false) + FrameCodec.headerSize(lastLength, false));
+		}
+	}
+	
+	/**
+	 * Keep a message sent in the journal and in the replay buffer (text and binary only).
+	 * @param frame - the message in one frame, or null if it wasn't encoded
+	 */
+	private void recordSent(byte[] message_data, String opcode, byte[] frame) {
+		if (this.journal != null) {
+			this.journal.record(false, opcode, message_data);
+		}
 
-			byte[] retorno = new byte[bframe_header.length + data_bytes.length];
-			for (int i = 0; i < bframe_header.length; i++) {
-				retorno[i] = bframe_header[i];
+		ReplayBuffer replayBuffer = this.replayBuffer;
+		if (replayBuffer != null && (TEXT_OPCODE.equals(opcode) || BINARY_OPCODE.equals(opcode))) {
+			// the sequence follows the buffer, that a stale connection of the session may
+			// still be appending to while the new one starts
+			synchronized (replayBuffer) {
+				this.outboundSequence = replayBuffer.getLastSequence() + 1;
+				replayBuffer.append(this.outboundSequence,
+						frame != null ? frame : createResponseFrame(message_data, opcode));
 			}
-
-			for (int i = 0; i < data_bytes.length; i++) {
-				retorno[i + bframe_header.length] = use_mask ? (byte) (data_bytes[i] ^ mask_bytes[i & 0x3])
-						: data_bytes[i];
+		}
+	}
+	
+	/**
+	 * Write bytes of one or more whole frames to the socket. The frames written by different
+	 * threads are never mixed, and they are written in the order the threads arrive.
+	 * @param trace - the trace id of the message written, 0 if it isn't traced
+	 */
+	private void writeToClient(byte[] data, int offset, int length, long trace) throws IOException {
+		this.frameLock.lock();
+		try {
+			long traceStart = traceStart(trace);
+			if (this.channel != null) {
+				this.writeFully(ByteBuffer.wrap(data, offset, length));
+			} else {
+				client.getOutputStream().write(data, offset, length);
 			}
-
-			return retorno;
-		} catch (Exception e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-			return null;
+			this.traceEnd(MessageTracer.Stage.WRITE, trace, traceStart);
+		} finally {
+			this.frameLock.unlock();
 		}
 	}
-
-	private byte[] readData(byte[] data) {
-
-		/*
-		 * If the second byte minus 128 is between 0 and 125, this is the length of the
-		 * message. If it is 126, the following 2 bytes (16-bit unsigned integer), if
-		 * 127, the following 8 bytes (64-bit unsigned integer, the most significant bit
-		 * MUST be 0) are the length.
-		 */
-
-		int size = Integer.parseUnsignedInt(get_binary(data[1]), 2) - 128;
-		int start_key = 2;
-		if (size <= 125) {
-			start_key = 2;
-		} else if (size >= 126) {
-			StringBuilder leng_bits = new StringBuilder();
-			int read_next_bytes = 2;
-			start_key = 4;
-
-			if (size == 127) {
-				read_next_bytes = 8;
-				start_key = 10;
+	
+	/**
+	 * Write the whole buffer to the non-blocking channel, waiting while the socket buffer
+	 * is full. It is called with the frameLock, that also guards the writeSelector.
+	 */
+	private void writeFully(ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (this.channel.write(buffer) > 0) {
+				continue;
 			}
-
-			for (int i = 0; i < read_next_bytes; i++) {
-				leng_bits.append(get_binary(data[i + 2]));
+			if (this.writeSelector == null) {
+				this.writeSelector = Selector.open();
+				this.channel.register(this.writeSelector, SelectionKey.OP_WRITE);
 			}
-			size = Integer.parseUnsignedInt(leng_bits.toString(), 2);
+			this.writeSelector.select(MAX_READ_TIMEOUT);
+			this.writeSelector.selectedKeys().clear();
 		}
-
-		// read message key
-		byte[] bkey = new byte[] { data[start_key], data[start_key + 1], data[start_key + 2], data[start_key + 3] };
-		start_key += bkey.length; // update this information to use when reading the data bytes inside incoming
-									// data
-
-		byte[] bdata = new byte[size];
-		for (int i = 0; i < size; i++) {
-			bdata[i] = data[i + start_key];
+	}
+	
+	/**
+	 * Read what the client sent, waiting for it at most the given time.
+	 * @param in - the stream of the socket, used when there is no channel
+	 * @param received - where the bytes are put
+	 * @param timeout - maximum time to wait, in milliseconds
+	 * @return how many bytes were read (0 when the time is over), or -1 at the end of the stream
+	 */
+	private int readFromClient(InputStream in, ByteBuffer received, int timeout) throws IOException {
+		if (this.channel != null) {
+			if (this.readSelector.select(timeout) > 0) {
+				this.readSelector.selectedKeys().clear();
+			}
+			return this.channel.read(received);
 		}
 
-		byte[] decoded = new byte[size];
-		for (int i = 0; i < bdata.length; i++) {
-			decoded[i] = (byte) (bdata[i] ^ bkey[i & 0x3]);
+		this.client.setSoTimeout(timeout);
+		try {
+			int read = in.read(received.array(), received.position(), received.remaining());
+			if (read > 0) {
+				received.position(received.position() + read);
+			}
+			return read;
+		} catch (SocketTimeoutException e) {
+			return 0;
 		}
-
-		return decoded;
 	}
 	
-	public void setKeepPinging(boolean keepPinging) {
-		this.keepPinging = keepPinging;
+	/**
+	 * Called by JWebSocketRouter when the connection is added to its registry.
+	 */
+	void setRegistration(ConnectionRegistry registry, long connectionId) {
+		this.registry = registry;
+		this.connectionId = connectionId;
 	}
 	
-	public void pingClient() throws Exception {
-		if (pingContent != null) {
-			throw new Exception("Ping without answer still waiting");
+	/**
+	 * Change the settings of the connection: ping, idle timeout, maximum message size and
+	 * the fragments and lanes of the messages sent.
+	 * It can be called while the connection is open: the settings are taken by the thread
+	 * that reads the socket, before the next frame (or when the connection starts).
+	 * @param config - the new settings
+	 */
+	public void setConfig(JWebSocketConfig config) {
+		this.pendingConfig.set(config);
+	}
+	
+	private void applyConfig(JWebSocketConfig config) {
+		this.keepPinging = config.isPingEnabled();
+		this.pingInterval = config.getPingInterval();
+		this.pingPckgSize = config.getPingSize();
+		this.idleTimeout = config.getIdleTimeout();
+		this.maxMessageSize = config.getMaxMessageSize();
+		this.fragmentSize = config.getFragmentSize();
+		this.smallMessageSize = config.getSmallMessageSize();
+		if (this.outboundQueue != null) {
+			this.outboundQueue.setSmallMessageSize(this.smallMessageSize);
+		}
+	}
+	
+	/**
+	 * Trace the time spent by the messages in each stage (see MessageTracer).
+	 * @param tracer - the tracer, that can be shared by many connections, or null to stop tracing
+	 */
+	public void setTracer(MessageTracer tracer) {
+		this.tracer = tracer;
+	}
+	
+	/**
+	 * Decide if a new message is traced, once for all its stages.
+	 * @return the trace id of the message (see MessageTracer.sample), or 0
+	 */
+	private long newTrace() {
+		MessageTracer tracer = this.tracer;
+		return tracer != null ? tracer.sample() : 0;
+	}
+	
+	/**
+	 * The sampling decision of a frame received: the first frame of a message decides for
+	 * the message, the other fragments take its trace, and a control frame is a message of
+	 * its own.
+	 */
+	private long inboundTrace(FrameCodec.Frame frame) {
+		int opcode = frame.getOpcodeValue();
+		if (opcode >= 0x8)
+			return this.newTrace();
+		if (opcode != 0)
+			this.inboundTrace = this.newTrace();
+		return this.inboundTrace;
+	}
+	
+	/**
+	 * @return System.nanoTime() if the message is traced, or 0
+	 */
+	private static long traceStart(long trace) {
+		return trace != 0 ? System.nanoTime() : 0;
+	}
+	
+	/**
+	 * Record the stage of a traced message, from traceStart (the time it was queued, for the
+	 * waits in a queue) to now.
+	 */
+	private void traceEnd(MessageTracer.Stage stage, long trace, long traceStart) {
+		MessageTracer tracer = this.tracer;
+		if (trace != 0 && tracer != null) {
+			tracer.record(stage, this.connectionId, trace, traceStart, System.nanoTime());
+		}
+	}
+	
+	/**
+	 * @return the id of the connection in the ConnectionRegistry of the JWebSocketRouter,
+	 * or -1 if it was not accepted by a router
+	 */
+	public long getConnectionId() {
+		return this.connectionId;
+	}
+	
+	/**
+	 * Enable the session layer: each text or binary message sent gets a sequence number
+	 * (starting at 1) and the last ones are kept in a bounded buffer.
+	 * 
+	 * When the browser reconnects (calling start again in the same instance), it can
+	 * inform the last sequence it has received in the query string of the handshake,
+	 * like ws://host:port/?resume=42, and only the messages it has missed are sent.
+	 * The client just needs to count the text and binary messages it receives.
+	 * 
+	 * Behind a JWebSocketRouter each connection is a new instance, so the buffer is kept
+	 * by the router instead, see JWebSocketRouter.enableSessionResume.
+	 * 
+	 * @param maxMessages - maximum number of messages kept to be replayed
+	 * @param maxBytes - maximum number of bytes kept to be replayed
+	 * @param offHeap - keep the messages out of the java heap
+	 */
+	public void enableSessionResume(int maxMessages, int maxBytes, boolean offHeap) {
+		this.replayBuffer = new ReplayBuffer(maxMessages, maxBytes, offHeap);
+		this.outboundSequence = 0;
+	}
+	
+	/**
+	 * Register a subprotocol. When the client offers it in the handshake, the text and binary
+	 * messages are decoded by the codec and given to the handler, instead of
+	 * interpretClientTextMessage and interpretClientBinaryMessage. When the client offers more
+	 * than one registered subprotocol, the first one in the client list is chosen.
+	 * It must be called before start.
+	 * @param codec - converts the messages of the subprotocol
+	 * @param handler - receives the decoded messages
+	 */
+	public <T> void registerSubprotocol(MessageCodec<T> codec, MessageHandler<T> handler) {
+		this.subprotocols.put(codec.getSubprotocol(), new Subprotocol<T>(codec, handler));
+	}
+	
+	/**
+	 * @return the subprotocol negotiated with the client, or null if there is none
+	 */
+	public String getSubprotocol() {
+		return this.subprotocol != null ? this.subprotocol.codec.getSubprotocol() : null;
+	}
+	
+	/**
+	 * @param bufferPool - the pool of the buffers used to encode the typed messages
+	 */
+	public void setBufferPool(BufferPool bufferPool) {
+		this.bufferPool = bufferPool;
+	}
+	
+	/**
+	 * Send a message of the negotiated subprotocol. It is encoded by the subprotocol codec
+	 * straight into a pooled buffer, after the room kept for the frame header.
+	 * @param message - the message, of the type of the negotiated codec
+	 */
+	protected void sendTypedMessage(Object message) {
+		if (this.subprotocol == null)
+			throw new IllegalStateException("No subprotocol negotiated with the client");
+
+		try {
+			this.encodeAndSend(this.subprotocol, message);
+		} catch (IOException ex) {
+			this.writeFailed();
+		}
+	}
+	
+	@SuppressWarnings("unchecked")
+	private <T> void encodeAndSend(Subprotocol<T> protocol, Object message) throws IOException {
+		BufferPool pool = this.bufferPool != null ? this.bufferPool : BufferPool.shared();
+		int reserved = FrameCodec.headerSize(Integer.MAX_VALUE, false);
+		int size = pool.getBufferSize();
+		ByteBuffer buffer;
+		long trace = this.newTrace();
+		long traceStart = traceStart(trace);
+		while (true) {
+			buffer = pool.acquire(size);
+			buffer.position(reserved);
+			try {
+				protocol.codec.encode((T) message, buffer);
+				break;
+			} catch (BufferOverflowException e) {
+				pool.release(buffer);
+				size = buffer.capacity() * 2;
+			}
+		}
+		this.traceEnd(MessageTracer.Stage.ENCODE, trace, traceStart);
+
+		try {
+			String opcode = protocol.codec.isText() ? TEXT_OPCODE : BINARY_OPCODE;
+			int length = buffer.position() - reserved;
+			int start = reserved - FrameCodec.headerSize(length, false);
+
+			if (this.outboundQueue != null || this.journal != null || this.replayBuffer != null
+					|| this.fragmentSize(length, opcode) > 0) {
+				// these features keep the frame, so it can't stay in the pooled buffer (and a
+				// fragmented message is written by writeFrame)
+				byte[] payload = new byte[length];
+				System.arraycopy(buffer.array(), reserved, payload, 0, length);
+				this.sendFrame(null, payload, opcode, null, trace);
+				return;
+			}
+
+			// write the header right before the payload and send both without copying
+			ByteBuffer header = buffer.duplicate();
+			header.position(start);
+			FrameCodec.encodeHeader(header, length, FrameCodec.opcodeValue(opcode), true, null);
+
+			if (client == null || !client.isConnected() || client.isClosed()) {
+				// no client to write to, and no replay buffer to keep the message for it
+				return;
+			}
+			synchronized (this.messageLock) {
+				this.writeToClient(buffer.array(), start, reserved + length - start, trace);
+			}
+			if (this.registry != null) {
+				this.registry.sent(this.connectionId, reserved + length - start);
+			}
+		} finally {
+			pool.release(buffer);
+		}
+	}
+	
+	/**
+	 * Enable conflation on the send path: the messages are put in a queue and written by
+	 * another thread, and a message sent with a key replaces the message with the same key
+	 * that is still waiting in the queue. This way a client that can't keep up with the
+	 * updates receives only the last state of each key.
+	 * While the client keeps up, the queue stays empty and each message is written right
+	 * away by the thread that sends it, without waiting for the writer thread.
+	 * The queue also gives priority to the control frames and to the small messages over
+	 * the big ones (see OutboundQueue).
+	 * The direct write must never block, so the socket of the connection is switched to
+	 * non-blocking mode after the handshake (when it has a channel, as the sockets accepted
+	 * by start and by JWebSocketRouter do). Writing to the streams of getClient(), or of the
+	 * socket given to clientConnected, then throws IllegalBlockingModeException: every
+	 * message must go through the send methods.
+	 * It must be called before start.
+	 */
+	public void enableConflation() {
+		this.outboundQueue = new OutboundQueue(this.smallMessageSize);
+	}
+	
+	/**
+	 * Enable the receive-side flow control: the text and binary messages received are put
+	 * in a bounded queue and interpreted by another thread. When the queue has highWatermark
+	 * messages the socket is not read anymore, so TCP slows the client down, until the
+	 * queue goes down to lowWatermark. Ping, pong and close frames are still answered by the
+	 * reading thread, but only while it is not paused.
+	 * It must be called before start.
+	 * @param highWatermark - messages in the queue that pause the reading
+	 * @param lowWatermark - messages in the queue that resume the reading
+	 */
+	public void enableFlowControl(int highWatermark, int lowWatermark) {
+		this.inboundQueue = new InboundQueue(highWatermark, lowWatermark);
+	}
+	
+	/**
+	 * Limit the text and binary messages received from the client. The same RateLimiter
+	 * can be given to many instances to share its global limits.
+	 * @param rateLimiter - the limits, or null to remove them
+	 */
+	public void setRateLimiter(RateLimiter rateLimiter) {
+		this.rateLimits = rateLimiter != null ? rateLimiter.newConnectionLimits() : null;
+	}
+	
+	/**
+	 * Apply the rate limits to a message received.
+	 * @param size - the size of the message
+	 * @return true if the message must be interpreted, false if it must be discarded
+	 */
+	private boolean checkRateLimits(int size) throws IOException, InterruptedException {
+		while (!this.rateLimits.tryAcquire(size)) {
+			switch (this.rateLimits.getAction()) {
+			case THROTTLE:
+				// while we sleep the socket is not read, so the client is slowed down by TCP
+				long wait = this.rateLimits.nanosUntilAvailable(size);
+				Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+				break;
+			case DROP:
+				return false;
+			case CLOSE:
+				// 1008 indicates that an endpoint is terminating the connection
+				// because it has received a message that violates its policy
+				this.failConnection(1008);
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Close frames start with a 2 bytes status code (network byte order).
+	 */
+	private static byte[] closePayload(int statusCode) {
+		return new byte[] { (byte) (statusCode >> 8), (byte) statusCode };
+	}
+	
+	/**
+	 * Keep every frame received and sent in the given journal. The frames are only put in
+	 * the journal queue here, they are written to disk by the journal own thread.
+	 * The same journal can be shared by many instances.
+	 * @param journal - the journal, or null to stop journaling
+	 */
+	public void setJournal(MessageJournal journal) {
+		this.journal = journal;
+	}
+	
+	/**
+	 * Called by JWebSocketRouter: the replay buffer is taken from the session of the
+	 * client (or a new session) at the handshake.
+	 */
+	void setSessionStore(SessionStore sessionStore) {
+		this.sessionStore = sessionStore;
+	}
+	
+	/**
+	 * @return the id of the session of the connection, or null when the sessions are not
+	 * kept by a JWebSocketRouter
+	 */
+	public String getSessionId() {
+		SessionStore.Session session = this.session;
+		return session != null ? session.getId() : null;
+	}
+	
+	/**
+	 * @return the sequence number of the last text or binary message sent
+	 */
+	public long getLastSentSequence() {
+		return this.outboundSequence;
+	}
+	
+	/**
+	 * Called when a client asks to resume a session, but the messages it missed are not
+	 * in the replay buffer anymore. Override it to send the whole state again, the client
+	 * should restart counting from getLastSentSequence().
+	 * @param lastSeenSequence - the last sequence the client has received
+	 */
+	protected void sessionResumeFailed(long lastSeenSequence) {
+	}
+	
+	private void resumeSession(long lastSeenSequence) throws IOException {
+		List<byte[]> missed = this.sessionCreated && lastSeenSequence > 0 ? null
+				: this.replayBuffer.framesAfter(lastSeenSequence);
+		if (missed == null) {
+			sessionResumeFailed(lastSeenSequence);
+			return;
+		}
+
+		// the messages sent by other threads meanwhile are written after the missed ones
+		this.frameLock.lock();
+		try {
+			for (byte[] frame : missed) {
+				this.writeToClient(frame, 0, frame.length, 0);
+			}
+		} finally {
+			this.frameLock.unlock();
+		}
+	}
+	
+	private void startOutboundWriter() {
+		final Socket connection = this.client;
+		Thread writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					while (!connection.isClosed()) {
+						OutboundQueue.Message message = outboundQueue.poll(100);
+						if (message != null) {
+							if (message.isFirstFrame() && !message.isRemainder()) {
+								traceEnd(MessageTracer.Stage.WRITE_WAIT, message.getTrace(), message.getQueuedAt());
+							}
+							try {
+								if (message.isRemainder()) {
+									writeToClient(message.getFrame(), 0, message.getFrame().length, message.getTrace());
+								} else if (message.isFragmented()) {
+									transmitFragment(message.getPayload(), message.getOpcode(), message.getFrame(),
+											message.getFragmentOffset(), message.getFragmentLength(), message.getTrace());
+								} else {
+									transmit(message.getPayload(), message.getOpcode(), message.getFrame(),
+											message.getTrace());
+								}
+							} finally {
+								outboundQueue.written();
+							}
+						}
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} catch (IOException | RuntimeException e) {
+					// the connection can't be written anymore, so nothing is kept for it
+					if (!connection.isClosed()) {
+						System.out.println("Error when trying to write to the client!!!");
+						e.printStackTrace();
+					}
+					outboundQueue.close();
+					stop();
+				}
+			}
+		}, "JWebSocket-writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+	
+	/**
+	 * Start a new WebSocket server and list the given port.
+	 * It will keep alive until it receive a CLOSE_CONNECTION opcode, or
+	 * some error happen.
+	 * @param port
+	 */
+	public void start(int port) {
+		try {
+			// a socket accepted by the channel has a channel too, see sendFrame
+			this.server = ServerSocketChannel.open().socket();
+			this.server.bind(new InetSocketAddress(port));
+
+			this.onServerStarted(this.server);
+			Socket accepted = this.server.accept();
+			this.serve(accepted, HttpRequest.read(accepted.getInputStream()), Collections.<String, String>emptyMap());
+		} catch (IOException e) {
+			// TODO Auto-generated catch block
+			e.printStackTrace();
+			this.stop();
+		}
+	}
+	
+	/**
+	 * Do the handshake and keep the connection with a client already accepted, until it
+	 * is closed. It is used by start, and by JWebSocketRouter, that accepts the connections
+	 * of many endpoints in the same port.
+	 * @param client - the socket of the client
+	 * @param request - the handshake request, already read from the socket
+	 * @param pathParameters - the parameters of the path, taken by the router
+	 */
+	void serve(Socket client, HttpRequest request, Map<String, String> pathParameters) {
+		try {
+			this.closing = false;
+			this.peerClosed = false;
+			this.pingContent = null;
+			this.pingNotSent = 0;
+			this.fragmentedOpcode = null;
+			this.fragments = null;
+			this.inboundTrace = 0;
+			if (this.inboundQueue != null)
+				this.inboundQueue.reopen();
+			if (this.outboundQueue != null)
+				this.outboundQueue.reopen();
+			this.client = client;
+			this.channel = null;
+			this.request = request;
+			this.pathParameters = pathParameters;
+
+			if (request == null || !this.handshake(request)) {
+				this.stop();
+				return;
+			}
+
+			// with conflation the socket is read and written through its channel from now on
+			// (when it has one), so a direct write never blocks; otherwise it stays blocking,
+			// and the subclass can still write to the streams of the socket
+			InputStream in = null;
+			this.frameLock.lock();
+			try {
+				SocketChannel channel = this.outboundQueue != null ? client.getChannel() : null;
+				if (channel != null) {
+					channel.configureBlocking(false);
+					this.readSelector = Selector.open();
+					channel.register(this.readSelector, SelectionKey.OP_READ);
+					this.channel = channel;
+				} else {
+					in = this.client.getInputStream();
+				}
+			} finally {
+				this.frameLock.unlock();
+			}
+
+			// the missed messages come first, before anything sent by clientConnected
+			if (this.replayBuffer != null && this.resumeSequence >= 0) {
+				this.resumeSession(this.resumeSequence);
+			}
+			
+			clientConnected(client);
+			
+			if (this.outboundQueue != null) {
+				this.startOutboundWriter();
+			}
+			
+			Thread dispatcher = null;
+			if (this.inboundQueue != null) {
+				dispatcher = this.startInboundDispatcher();
+			}
+			ByteBuffer received = ensureRoom(ByteBuffer.allocate(8192), request.getRemaining().length);
+			received.put(request.getRemaining());
+			long lastReceived = System.currentTimeMillis();
+			// System.nanoTime() of the read that brought the first bytes of the next frame
+			long frameArrivedAt = 0;
+
+			while (!this.client.isClosed()) {
+				JWebSocketConfig config = this.pendingConfig.getAndSet(null);
+				if (config != null) {
+					this.applyConfig(config);
+				}
+
+				if (this.idleTimeout > 0 && System.currentTimeMillis() - lastReceived >= this.idleTimeout) {
+					// nothing received for too long, not even the answer of a ping
+					this.failConnection(1001);
+					break;
+				}
+				if (this.shouldPing()) {
+					if (this.pingContent != null) {
+						// the last ping wasn't answered in time
+						this.pingContent = null;
+						if (++this.pingNotSent > PING_NOT_SENT_TOLERANCE) {
+							this.failConnection(1001);
+							break;
+						}
+					}
+					this.pingClient();
+				}
+
+				// the bytes read may have many frames, or just a part of one,
+				// so they are kept until the whole frame arrives
+				received = ensureRoom(received, MIN_READ_SIZE);
+				int read = this.readFromClient(in, received, this.readTimeout(lastReceived));
+				if (read == -1) {
+					// the client closed the TCP connection without a close frame
+					break;
+				}
+				if (read == 0) {
+					// time to ping, or to check the idle timeout
+					continue;
+				}
+				lastReceived = System.currentTimeMillis();
+				MessageTracer tracer = this.tracer;
+				long readAt = tracer != null ? System.nanoTime() : 0;
+				if (frameArrivedAt == 0) {
+					frameArrivedAt = readAt;
+				}
+
+				received.flip();
+				while (!this.client.isClosed()) {
+					long length;
+					try {
+						length = FrameCodec.payloadLength(received);
+					} catch (IllegalStateException e) {
+						this.failConnection(1002);
+						break;
+					}
+					if (length > this.maxMessageSize) {
+						// refused before the whole payload is received
+						this.failConnection(1009);
+						break;
+					}
+
+					long parseStart = tracer != null ? System.nanoTime() : 0;
+					FrameCodec.Frame frame = FrameCodec.decode(received, false);
+					if (frame == null) {
+						break;
+					}
+					long trace = tracer != null ? this.inboundTrace(frame) : 0;
+					long parsed = traceStart(trace);
+					frame.unmask();
+					if (trace != 0) {
+						tracer.record(MessageTracer.Stage.READ, this.connectionId, trace, frameArrivedAt, readAt);
+						tracer.record(MessageTracer.Stage.PARSE, this.connectionId, trace, parseStart, parsed);
+						this.traceEnd(MessageTracer.Stage.UNMASK, trace, parsed);
+					}
+					// the first bytes of the next frame, if any, came with this read
+					frameArrivedAt = readAt;
+
+					this.interpretFrame(frame, trace);
+				}
+				if (!received.hasRemaining()) {
+					frameArrivedAt = 0;
+				}
+				received.compact();
+
+				// the socket isn't read while the frames are interpreted (a slow handler, a
+				// paused inbound queue or a throttle): the client isn't idle meanwhile, and
+				// the answer of a ping can't be read, so both clocks leave this time out
+				long busy = System.currentTimeMillis() - lastReceived;
+				lastReceived += busy;
+				this.beginPingCount += busy;
+			}
+
+			if (dispatcher != null) {
+				dispatcher.join();
+			}
+			clientDisconnected();
+
+		} catch (Exception e) {
+			// a socket closed by stop (or shutdown) while it was read is not an error
+			if (!this.client.isClosed()) {
+				e.printStackTrace();
+			}
+		} finally {
+			this.stop();
+			this.closeSelectors();
+			if (this.session != null) {
+				this.sessionStore.detach(this.session, this);
+				this.session = null;
+			}
+		}
+	}
+	
+	private void closeSelectors() {
+		try {
+			if (this.readSelector != null) {
+				this.readSelector.close();
+				this.readSelector = null;
+			}
+			// the writeSelector may be in use by another thread until it sees the socket closed
+			this.frameLock.lock();
+			try {
+				if (this.writeSelector != null) {
+					this.writeSelector.close();
+					this.writeSelector = null;
+				}
+			} finally {
+				this.frameLock.unlock();
+			}
+		} catch (IOException e) {
+			// nothing to do, the socket is already closed
+		}
+	}
+	
+	/**
+	 * @param trace - the trace id of the message of the frame, 0 if it isn't traced
+	 */
+	private void interpretFrame(FrameCodec.Frame frame, long trace) throws IOException, InterruptedException {
+		/*
+		 * First byte:
+		 * 
+		 * FIN: 1 bit
+		 * 
+		 * Indicates that this is the final fragment in a message. The first fragment
+		 * MAY also be the final fragment.
+		 * 
+		 * RSV1, RSV2, RSV3: 1 bit each
+		 * 
+		 * MUST be 0 unless an extension is negotiated that defines meanings for
+		 * non-zero values. If a nonzero value is received and none of the negotiated
+		 * extensions defines the meaning of such a nonzero value, the receiving
+		 * endpoint MUST _Fail the WebSocket Connection_.
+		 */
+		if (frame.getRsv() != 0 || !frame.isMasked()) {
+			// no extension is negotiated, and the client MUST mask every frame
+			this.failConnection(1002);
+			return;
+		}
+		byte[] decoded_data = frame.getPayload();
+		/*
+		 * 
+		 * 
+		 * Opcode: 4 bits
+		 * 
+		 * Defines the interpretation of the "Payload data". If an unknown opcode is
+		 * received, the receiving endpoint MUST _Fail the WebSocket Connection_. The
+		 * following values are defined.
+		 * 
+		 * %x0 denotes a continuation frame
+		 * 
+		 * %x1 denotes a text frame
+		 * 
+		 * %x2 denotes a binary frame
+		 * 
+		 * %x3-7 are reserved for further non-control frames
+		 * 
+		 * %x8 denotes a connection close
+		 * 
+		 * %x9 denotes a ping
+		 * 
+		 * %xA denotes a pong
+		 * 
+		 * %xB-F are reserved for further control frames
+		 */
+		String opcode_bits = frame.getOpcode();
+		int opcode = frame.getOpcodeValue();
+		if ((opcode >= 3 && opcode <= 7) || opcode >= 11) {
+			// %x3-7 and %xB-F are reserved
+			this.failConnection(1002);
+			return;
+		}
+		if (opcode >= 8) {
+			if (!frame.isFin() || decoded_data.length > 125) {
+				// control frames can't be fragmented and have 125 bytes at most
+				this.failConnection(1002);
+				return;
+			}
+		} else if (!frame.isFin() || CONTINUOUS_MSG_OPCODE.equals(opcode_bits) || this.fragmentedOpcode != null) {
+			// a fragment of a message: kept until the last one arrives
+			boolean continuation = CONTINUOUS_MSG_OPCODE.equals(opcode_bits);
+			if (continuation == (this.fragmentedOpcode == null)) {
+				// a continuation without the first fragment, or a new message before the last one ended
+				this.failConnection(1002);
+				return;
+			}
+			if (!continuation) {
+				this.fragmentedOpcode = opcode_bits;
+				this.fragments = ByteBuffer.allocate(Math.max(1024, decoded_data.length));
+			}
+			if ((long) this.fragments.position() + decoded_data.length > this.maxMessageSize) {
+				this.failConnection(1009);
+				return;
+			}
+			this.fragments = ensureRoom(this.fragments, decoded_data.length);
+			this.fragments.put(decoded_data);
+			if (!frame.isFin()) {
+				return;
+			}
+
+			// the last fragment: the whole message is interpreted
+			opcode_bits = this.fragmentedOpcode;
+			decoded_data = Arrays.copyOf(this.fragments.array(), this.fragments.position());
+			this.fragmentedOpcode = null;
+			this.fragments = null;
+		}
+		
+		if (this.journal != null && decoded_data != null) {
+			this.journal.record(true, opcode_bits, decoded_data);
+		}
+		
+		if (this.rateLimits != null && decoded_data != null
+				&& (TEXT_OPCODE.equals(opcode_bits) || BINARY_OPCODE.equals(opcode_bits))
+				&& !this.checkRateLimits(decoded_data.length)) {
+			return;
+		}
+		
+		if (this.registry != null && decoded_data != null
+				&& (TEXT_OPCODE.equals(opcode_bits) || BINARY_OPCODE.equals(opcode_bits))) {
+			this.registry.received(this.connectionId, decoded_data.length);
+		}
+
+		switch (opcode_bits) {
+		case TEXT_OPCODE:
+		case BINARY_OPCODE:
+			if (this.inboundQueue != null) {
+				// interpreted by the dispatcher thread, see enableFlowControl
+				this.inboundQueue.put(opcode_bits, decoded_data, trace);
+				break;
+			}
+			this.dispatchMessage(opcode_bits, decoded_data, trace);
+			break;
+		case CLOSE_CONNECTION_OPCODE:
+			if (decoded_data.length == 1 || (decoded_data.length >= 2
+					&& !isValidCloseCode(((decoded_data[0] & 0xFF) << 8) | (decoded_data[1] & 0xFF)))) {
+				this.failConnection(1002);
+				return;
+			}
+			if (decoded_data.length > 2) {
+				try {
+					decodeUtf8(decoded_data, 2, decoded_data.length - 2);
+				} catch (CharacterCodingException e) {
+					// the close reason must be UTF-8
+					this.failConnection(1007);
+					return;
+				}
+			}
+			if (this.closing) {
+				// answer of the close frame sent by shutdown
+				synchronized (this.closeLock) {
+					this.peerClosed = true;
+					this.closeLock.notifyAll();
+				}
+			} else {
+				// the client started the closing handshake, echo its status code
+				this.sendMessage(decoded_data != null && decoded_data.length >= 2
+						? new byte[] { decoded_data[0], decoded_data[1] } : new byte[0], CLOSE_CONNECTION_OPCODE);
+				this.flushOutbound(System.currentTimeMillis() + 1000);
+			}
+			this.stop();
+			break;
+		case PING_OPCODE:
+			this.sendMessage(decoded_data, PONG_OPCODE);
+			break;
+		case PONG_OPCODE:
+			if (this.pingContent != null) {
+				String sPingContent = new String(this.pingContent, "UTF-8");
+				String sPongContent = new String(decoded_data, "UTF-8");
+				if(!sPingContent.equals(sPongContent)) {
+					if (this.pingNotSent < PING_NOT_SENT_TOLERANCE) {
+						this.pingNotSent++;
+					} else {
+						this.stop();
+					}
+				} else {
+					// answered, the next ping can be sent
+					this.pingContent = null;
+					this.pingNotSent = 0;
+				}
+			}
+			break;
+		}
+	}
+	
+	/**
+	 * _Fail the WebSocket Connection_ (RFC 6455, 7.1.7): send a close frame with the status
+	 * code and close the socket, without waiting for the answer.
+	 */
+	private void failConnection(int statusCode) throws IOException {
+		this.sendMessage(closePayload(statusCode), CLOSE_CONNECTION_OPCODE);
+		this.flushOutbound(System.currentTimeMillis() + 1000);
+		this.stop();
+	}
+	
+	/**
+	 * @return true if the status code can be received in a close frame (RFC 6455, 7.4)
+	 */
+	private static boolean isValidCloseCode(int statusCode) {
+		return (statusCode >= 1000 && statusCode <= 1003) || (statusCode >= 1007 && statusCode <= 1011)
+				|| (statusCode >= 3000 && statusCode <= 4999);
+	}
+	
+	/**
+	 * Decode UTF-8, refusing malformed bytes (new String would replace them).
+	 */
+	private static String decodeUtf8(byte[] data, int offset, int length) throws CharacterCodingException {
+		return StandardCharsets.UTF_8.newDecoder().decode(ByteBuffer.wrap(data, offset, length)).toString();
+	}
+	
+	/**
+	 * Give a text or binary message to the subprotocol handler, or to
+	 * interpretClientTextMessage / interpretClientBinaryMessage.
+	 */
+	private void dispatchMessage(String opcode, byte[] decoded_data, long trace) throws IOException {
+		long traceStart = traceStart(trace);
+		if (this.subprotocol != null) {
+			if (TEXT_OPCODE.equals(opcode) != this.subprotocol.codec.isText()) {
+				// a text frame for a binary codec, or the reverse
+				this.failConnection(1003);
+			} else {
+				try {
+					if (TEXT_OPCODE.equals(opcode))
+						decodeUtf8(decoded_data, 0, decoded_data.length);
+					this.subprotocol.dispatch(ByteBuffer.wrap(decoded_data));
+				} catch (IOException e) {
+					// not UTF-8, or a message the codec can't decode
+					this.failConnection(1007);
+				}
+			}
+		} else if (TEXT_OPCODE.equals(opcode)) {
+			String text_decoded_data = null;
+			try {
+				text_decoded_data = decodeUtf8(decoded_data, 0, decoded_data.length);
+			} catch (CharacterCodingException e) {
+				// text messages must be UTF-8
+				this.failConnection(1007);
+			}
+
+			// subprotocol
+			if (text_decoded_data != null) {
+				interpretClientTextMessage(text_decoded_data);
+			}
+		} else {
+			// subprotocol
+			interpretClientBinaryMessage(decoded_data);
+		}
+		this.traceEnd(MessageTracer.Stage.HANDLER, trace, traceStart);
+	}
+	
+	private Thread startInboundDispatcher() {
+		final Socket connection = this.client;
+		Thread dispatcher = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					// the messages already received are interpreted even after the socket is closed
+					while (!connection.isClosed() || !inboundQueue.isEmpty()) {
+						InboundQueue.Message message = inboundQueue.poll(100);
+						if (message != null) {
+							traceEnd(MessageTracer.Stage.DISPATCH_WAIT, message.getTrace(), message.getReceivedAt());
+							dispatchMessage(message.getOpcode(), message.getPayload(), message.getTrace());
+						}
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} catch (Exception e) {
+					e.printStackTrace();
+					inboundQueue.close();
+					stop();
+				}
+			}
+		}, "JWebSocket-dispatcher");
+		dispatcher.setDaemon(true);
+		dispatcher.start();
+		return dispatcher;
+	}
+	
+	private static ByteBuffer ensureRoom(ByteBuffer buffer, int needed) {
+		if (buffer.remaining() >= needed) {
+			return buffer;
+		}
+		ByteBuffer bigger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + needed));
+		buffer.flip();
+		bigger.put(buffer);
+		return bigger;
+	}
+	
+	public boolean sendStopSignal() throws Exception {
+		if (getClient() != null ? !getClient().isConnected() : false)
+			throw new Exception("Client is not connected yet!");
+
+		if (getClient() != null ? getClient().isClosed() : false)
+			throw new Exception("Trying to close connection with client when it is already closed!");
+		
+		// indicates that an endpoint is "going away", such as a server
+	    //  going down or a browser having navigated away from a page.
+		this.sendMessage(closePayload(1001), CLOSE_CONNECTION_OPCODE);
+		this.flushOutbound(System.currentTimeMillis() + 1000);
+
+		this.client.close();
+		this.server.close();
+		return true;
+	}
+	
+	/**
+	 * Close the connection without losing the messages already sent:
+	 * 
+	 * 1 - stop accepting new connections
+	 * 
+	 * 2 - wait the outbound queue to be written (when conflation is enabled)
+	 * 
+	 * 3 - send a close frame with status 1001 (going away)
+	 * 
+	 * 4 - wait the client to answer with its close frame
+	 * 
+	 * Everything must happen before the timeout, otherwise the connection is just closed.
+	 * @param timeoutMillis - maximum time to wait for the client
+	 * @return true if the connection was drained cleanly, false if there was no client
+	 * connected, or the timeout expired
+	 */
+	public boolean shutdown(long timeoutMillis) {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		this.closing = true;
+		try {
+			if (this.server != null) {
+				this.server.close();
+			}
+
+			if (this.client == null || this.client.isClosed()) {
+				return false;
+			}
+
+			boolean flushed = this.flushOutbound(deadline);
+
+			// indicates that an endpoint is "going away", such as a server
+			//  going down or a browser having navigated away from a page.
+			this.sendMessage(closePayload(1001), CLOSE_CONNECTION_OPCODE);
+			flushed = this.flushOutbound(deadline) && flushed;
+
+			synchronized (this.closeLock) {
+				long remaining;
+				while (!this.peerClosed && (remaining = deadline - System.currentTimeMillis()) > 0) {
+					this.closeLock.wait(remaining);
+				}
+				return flushed && this.peerClosed;
+			}
+		} catch (IOException e) {
+			System.out.println("Error when trying to close the connection gracefully!!!");
+			return false;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		} finally {
+			this.stop();
+		}
+	}
+	
+	/**
+	 * Wait the outbound queue to be written, when conflation is enabled.
+	 * @param deadline - maximum instant (System.currentTimeMillis) to wait
+	 * @return true if the queue is empty
+	 */
+	private boolean flushOutbound(long deadline) {
+		if (this.outboundQueue == null) {
+			return true;
+		}
+
+		try {
+			return this.outboundQueue.awaitEmpty(deadline - System.currentTimeMillis());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+	
+	protected void stop() {
+		if (this.inboundQueue != null) {
+			// the reading thread may be paused, waiting for the dispatcher
+			this.inboundQueue.close();
+		}
+		if (this.outboundQueue != null) {
+			this.outboundQueue.close();
+		}
+		try {
+			if (this.client != null)
+				this.client.close();
+			// the threads waiting in the selectors see the socket closed at once
+			Selector selector = this.readSelector;
+			if (selector != null)
+				selector.wakeup();
+			selector = this.writeSelector;
+			if (selector != null)
+				selector.wakeup();
+			if (this.server != null)
+				this.server.close();
+		} catch (IOException e) {
+			// TODO Auto-generated catch block
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * @param key - the Sec-WebSocket-Key of the handshake request
+	 * @return the Sec-WebSocket-Accept that answers it
+	 * @throws NoSuchAlgorithmException - if SHA-1 isn't available
+	 */
+	static String acceptKey(String key) throws NoSuchAlgorithmException {
+		return Base64.getEncoder().encodeToString(MessageDigest.getInstance("SHA-1")
+				.digest((key + "258EAFA5-E914-47DA-95CA-C5AB0DC85B11").getBytes(StandardCharsets.UTF_8)));
+	}
+
+	private boolean handshake(HttpRequest request) {
+		try {
+			String key = request.getHeader("Sec-WebSocket-Key");
+			if ("GET".equals(request.getMethod()) && key != null) {
+				String resume = request.getQueryParameter("resume");
+				this.resumeSequence = resume != null && resume.matches("\\d+") ? Long.parseLong(resume) : -1;
+				String sessionCookie = this.takeSession(request);
+
+				this.subprotocol = null;
+				String protocols = request.getHeader("Sec-WebSocket-Protocol");
+				if (protocols != null) {
+					// the client lists the subprotocols in order of preference
+					for (String offered : protocols.split(",")) {
+						this.subprotocol = this.subprotocols.get(offered.trim());
+						if (this.subprotocol != null)
+							break;
+					}
+				}
+
+				byte[] response = ("HTTP/1.1 101 Switching Protocols\r\n" + "Connection: Upgrade\r\n"
+						+ "Upgrade: websocket\r\n" + "Sec-WebSocket-Accept: " + acceptKey(key)
+						+ (this.subprotocol != null
+								? "\r\nSec-WebSocket-Protocol: " + this.subprotocol.codec.getSubprotocol() : "")
+						+ (sessionCookie != null ? "\r\nSet-Cookie: " + sessionCookie : "")
+						+ "\r\n\r\n").getBytes("UTF-8");
+				OutputStream out = client.getOutputStream();
+				out.write(response, 0, response.length);
+				return true;
+			} else {
+				return false;
+			}
+		} catch (IOException e1) {
+			System.out.println("Error when trying to read handshake data!!!");
+			return false;
+		} catch (NoSuchAlgorithmException e) {
+			System.out.println("SHA-1 hasn't been found to digest message!!!");
+			return false;
+		}
+
+	}
+
+	/**
+	 * Called by the SessionStore when a new connection of the client takes the session of
+	 * this one: the client is gone, but it wasn't noticed yet. The messages sent here are
+	 * not kept for the session anymore, and the connection is closed.
+	 */
+	void sessionTakenOver() {
+		this.replayBuffer = null;
+		this.stop();
+	}
+
+	/**
+	 * Take the session of the client from the session store (or a new one), with its
+	 * replay buffer.
+	 * @return the cookie with the id of the session, or null without a session store
+	 */
+	private String takeSession(HttpRequest request) {
+		if (this.sessionStore == null)
+			return null;
+
+		String id = request.getQueryParameter("session");
+		this.session = this.sessionStore.attach(id != null ? id : request.getCookie(SessionStore.COOKIE_NAME), this);
+		this.sessionCreated = this.session == null;
+		if (this.session == null)
+			this.session = this.sessionStore.create(this);
+		this.replayBuffer = this.session.getBuffer();
+		this.outboundSequence = this.replayBuffer.getLastSequence();
+		return SessionStore.COOKIE_NAME + "=" + this.session.getId() + "; Path=/; HttpOnly";
+	}
+	
+	private byte[] createResponseFrame(byte[] data_bytes, String opcode) {
+		// server MUST NOT mask its frames
+		return FrameCodec.encode(data_bytes, FrameCodec.opcodeValue(opcode), true, null);
+	}
+
+	public void setKeepPinging(boolean keepPinging) {
+		this.keepPinging = keepPinging;
+	}
+	
+	public void pingClient() throws Exception {
+		if (pingContent != null) {
+			throw new Exception("Ping without answer still waiting");
 		}
 		
 		byte[] pingPckg = this.getPingPackage(this.pingPckgSize);
@@ -554,6 +1645,19 @@ public abstract class JWebSocket {
 		this.pingContent = pingPckg;
 	}
 	
+	/**
+	 * @return milliseconds the socket read can block before the next ping or the idle
+	 * timeout, at most MAX_READ_TIMEOUT so a new configuration is taken soon
+	 */
+	private int readTimeout(long lastReceived) {
+		long now = System.currentTimeMillis(), timeout = MAX_READ_TIMEOUT;
+		if (this.keepPinging)
+			timeout = Math.min(timeout, this.beginPingCount + this.pingInterval - now);
+		if (this.idleTimeout > 0)
+			timeout = Math.min(timeout, lastReceived + this.idleTimeout - now);
+		return (int) Math.max(1, timeout);
+	}
+	
 	private boolean shouldPing() {
 		return this.keepPinging ? 
 				System.currentTimeMillis() - this.beginPingCount >= this.pingInterval : 
@@ -561,12 +1665,8 @@ public abstract class JWebSocket {
 	}
 	
 	private byte randomByte() {
-		String oct = "";
-		for(int i = 0; i < 8; i++) {
-			String bit = (Math.random() * 10) > 5 ? "1" : "0";
-			oct = oct.concat(bit);
-		}
-		return Byte.parseByte(oct);
+		// Byte.parseByte of the bits failed for most of the values (they were parsed as decimal)
+		return (byte) ThreadLocalRandom.current().nextInt(256);
 	}
 	
 	protected byte[] getPingPackage(int size) {
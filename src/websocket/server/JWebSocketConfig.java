@@ -0,0 +1,238 @@
+package websocket;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * The settings of a server, read from a properties file. It is immutable, and every value
+ * is checked when it is loaded, so an invalid file is refused as a whole.
+ *
+ * <pre>
+ * # applied to the open connections when the file changes (see ConfigWatcher)
+ * ping.enabled = true
+ * # milliseconds between pings, and bytes of each ping (up to 125)
+ * ping.interval = 5000
+ * ping.size = 8
+ * # close a connection that sent nothing for this many milliseconds, 0 = never
+ * idle.timeout = 0
+ * # a bigger message closes the connection with 1009 (message too big)
+ * message.maxSize = 1048576
+ * # milliseconds to wait the next request of a static file connection
+ * http.keepAliveTimeout = 15000
+ * # bigger messages are sent in fragments of this size, so pings pass them, 0 = never
+ * outbound.fragmentSize = 16384
+ * # with conflation, messages up to this size are sent before the bigger ones
+ * outbound.smallMessageSize = 4096
+ *
+ * # applied to the new connections: the flow control (see JWebSocket.enableFlowControl), 0 = off
+ * inbound.highWatermark = 0
+ * inbound.lowWatermark = 0
+ *
+ * # only applied after a restart
+ * # more connections are refused with 503
+ * connections.max = 16384
+ * # the pool shared by the connections, bufferSize 0 = BufferPool.shared()
+ * # (each buffer holds a frame with a payload of bufferSize, keep it >= outbound.fragmentSize)
+ * bufferPool.bufferSize = 0
+ * bufferPool.maxPooled = 256
+ * # buffers allocated in the background right after the server starts listening
+ * bufferPool.prewarm = 16
+ * </pre>
+ *
+ * A missing setting has the default value above. An unknown setting is an error, so a typo
+ * doesn't go unnoticed.
+ */
+public final class JWebSocketConfig {
+
+	private static final Set<String> KEYS = new HashSet<String>(Arrays.asList("ping.enabled", "ping.interval",
+			"ping.size", "idle.timeout", "message.maxSize", "http.keepAliveTimeout", "outbound.fragmentSize",
+			"outbound.smallMessageSize", "inbound.highWatermark", "inbound.lowWatermark", "connections.max",
+			"bufferPool.bufferSize", "bufferPool.maxPooled", "bufferPool.prewarm"));
+
+	private static final JWebSocketConfig DEFAULTS = new JWebSocketConfig(new Properties());
+
+	private final boolean pingEnabled;
+	private final long pingInterval, idleTimeout, maxMessageSize;
+	private final int pingSize, keepAliveTimeout, fragmentSize, smallMessageSize;
+	private final int inboundHighWatermark, inboundLowWatermark;
+	private final int maxConnections, bufferSize, maxPooledBuffers, prewarmBuffers;
+
+	private JWebSocketConfig(Properties properties) {
+		for (String key : properties.stringPropertyNames()) {
+			if (!KEYS.contains(key))
+				throw new IllegalArgumentException("Unknown setting: " + key);
+		}
+
+		this.pingEnabled = booleanValue(properties, "ping.enabled", true);
+		this.pingInterval = longValue(properties, "ping.interval", 5000, 1, Long.MAX_VALUE);
+		this.pingSize = (int) longValue(properties, "ping.size", 8, 1, 125);
+		this.idleTimeout = longValue(properties, "idle.timeout", 0, 0, Long.MAX_VALUE);
+		this.maxMessageSize = longValue(properties, "message.maxSize", 1024 * 1024, 1, FrameCodec.MAX_PAYLOAD_SIZE);
+		this.keepAliveTimeout = (int) longValue(properties, "http.keepAliveTimeout", 15000, 1, Integer.MAX_VALUE);
+		this.fragmentSize = (int) longValue(properties, "outbound.fragmentSize", 16 * 1024, 0, Integer.MAX_VALUE);
+		this.smallMessageSize = (int) longValue(properties, "outbound.smallMessageSize", 4 * 1024, 0,
+				Integer.MAX_VALUE);
+		this.inboundHighWatermark = (int) longValue(properties, "inbound.highWatermark", 0, 0, Integer.MAX_VALUE);
+		this.inboundLowWatermark = (int) longValue(properties, "inbound.lowWatermark", 0, 0, Integer.MAX_VALUE);
+		this.maxConnections = (int) longValue(properties, "connections.max", 16 * 1024, 1, Integer.MAX_VALUE);
+		this.bufferSize = (int) longValue(properties, "bufferPool.bufferSize", 0, 0,
+				Integer.MAX_VALUE - FrameCodec.MAX_HEADER_SIZE);
+		this.maxPooledBuffers = (int) longValue(properties, "bufferPool.maxPooled", 256, 0, Integer.MAX_VALUE);
+		this.prewarmBuffers = (int) longValue(properties, "bufferPool.prewarm", 16, 0, Integer.MAX_VALUE);
+
+		if (this.inboundHighWatermark > 0 && this.inboundLowWatermark >= this.inboundHighWatermark)
+			throw new IllegalArgumentException("inbound.lowWatermark must be lower than inbound.highWatermark");
+	}
+
+	/**
+	 * @return the configuration with every default value
+	 */
+	public static JWebSocketConfig defaults() {
+		return DEFAULTS;
+	}
+
+	/**
+	 * @param properties - the settings
+	 * @return the configuration
+	 * @throws IllegalArgumentException - if a setting is unknown or invalid
+	 */
+	public static JWebSocketConfig fromProperties(Properties properties) {
+		return new JWebSocketConfig(properties);
+	}
+
+	/**
+	 * @param file - a properties file
+	 * @return the configuration
+	 * @throws IOException - if the file can't be read
+	 * @throws IllegalArgumentException - if a setting is unknown or invalid
+	 */
+	public static JWebSocketConfig load(File file) throws IOException {
+		Properties properties = new Properties();
+		try (InputStream in = new FileInputStream(file)) {
+			properties.load(in);
+		}
+		return new JWebSocketConfig(properties);
+	}
+
+	/**
+	 * @param newer - the configuration that would replace this one
+	 * @return the settings changed by newer that are only applied after a restart
+	 */
+	public List<String> restartRequired(JWebSocketConfig newer) {
+		List<String> changed = new ArrayList<String>();
+		if (this.maxConnections != newer.maxConnections)
+			changed.add("connections.max");
+		if (this.bufferSize != newer.bufferSize)
+			changed.add("bufferPool.bufferSize");
+		if (this.maxPooledBuffers != newer.maxPooledBuffers)
+			changed.add("bufferPool.maxPooled");
+		if (this.prewarmBuffers != newer.prewarmBuffers)
+			changed.add("bufferPool.prewarm");
+		return changed;
+	}
+
+	public boolean isPingEnabled() {
+		return this.pingEnabled;
+	}
+
+	public long getPingInterval() {
+		return this.pingInterval;
+	}
+
+	public int getPingSize() {
+		return this.pingSize;
+	}
+
+	/**
+	 * @return milliseconds without receiving anything to close the connection, 0 = never
+	 */
+	public long getIdleTimeout() {
+		return this.idleTimeout;
+	}
+
+	public long getMaxMessageSize() {
+		return this.maxMessageSize;
+	}
+
+	public int getKeepAliveTimeout() {
+		return this.keepAliveTimeout;
+	}
+
+	/**
+	 * @return the maximum payload of each frame of a text or binary message, 0 = no limit
+	 */
+	public int getFragmentSize() {
+		return this.fragmentSize;
+	}
+
+	public int getSmallMessageSize() {
+		return this.smallMessageSize;
+	}
+
+	/**
+	 * @return the high watermark of the flow control, 0 when it is off
+	 */
+	public int getInboundHighWatermark() {
+		return this.inboundHighWatermark;
+	}
+
+	public int getInboundLowWatermark() {
+		return this.inboundLowWatermark;
+	}
+
+	public int getMaxConnections() {
+		return this.maxConnections;
+	}
+
+	/**
+	 * @return the payload size of the buffers of the pool, 0 to use BufferPool.shared()
+	 */
+	public int getBufferSize() {
+		return this.bufferSize;
+	}
+
+	public int getMaxPooledBuffers() {
+		return this.maxPooledBuffers;
+	}
+
+	/**
+	 * @return the buffers allocated after the server starts (see BufferPool.prewarm)
+	 */
+	public int getPrewarmBuffers() {
+		return this.prewarmBuffers;
+	}
+
+	private static boolean booleanValue(Properties properties, String key, boolean defaultValue) {
+		String value = properties.getProperty(key);
+		if (value == null)
+			return defaultValue;
+		value = value.trim();
+		if (!value.equalsIgnoreCase("true") && !value.equalsIgnoreCase("false"))
+			throw new IllegalArgumentException("Invalid value for " + key + ": " + value);
+		return Boolean.parseBoolean(value);
+	}
+
+	private static long longValue(Properties properties, String key, long defaultValue, long min, long max) {
+		String value = properties.getProperty(key);
+		if (value == null)
+			return defaultValue;
+		try {
+			long number = Long.parseLong(value.trim());
+			if (number >= min && number <= max)
+				return number;
+		} catch (NumberFormatException e) {
+			// reported below
+		}
+		throw new IllegalArgumentException("Invalid value for " + key + ": " + value.trim() + " (expected "
+				+ min + " to " + max + ")");
+	}
+
+}
@@ -0,0 +1,506 @@
+package websocket;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Serves many WebSocket endpoints in the same port.
+ *
+ * Each endpoint is a path pattern, like /chat/{room}, mapped to a factory of JWebSocket
+ * instances. The handshake path of each connection is resolved once, by a trie built when
+ * the routes are registered, and a new instance is created to keep the connection. A
+ * literal segment is tried before a {parameter}, so /a/b wins over /a/{x}, but /a/b/c
+ * still matches /a/{x}/c. The values of the {parameters} are given to the instance by
+ * getPathParameters.
+ *
+ * Every connection shares the listener, the connection threads and the BufferPool. The
+ * open connections are kept in a ConnectionRegistry, used by the broadcasts and by the
+ * admin queries (see getConnections).
+ *
+ * The requests that are not a WebSocket handshake can be answered with the files of a
+ * static directory (see setStaticDirectory), so the page that opens the WebSocket doesn't
+ * need another server.
+ */
+public class JWebSocketRouter {
+
+	/**
+	 * A node of the route trie: one path segment.
+	 */
+	private static class Node {
+		final Map<String, Node> literals = new HashMap<String, Node>();
+		Node parameter;
+		String parameterName;
+		Supplier<? extends JWebSocket> factory;
+	}
+
+	private static final int KEEP_ALIVE_TIMEOUT = 15000;
+
+	private final Node root;
+	private final ConnectionRegistry connections;
+	private final ExecutorService workers;
+	private BufferPool bufferPool;
+	private MessageTracer tracer;
+	private SessionStore sessions;
+	private volatile JWebSocketConfig config;
+	private StaticFileHandler staticFiles;
+	private volatile ServerSocketChannel server;
+
+	public JWebSocketRouter() {
+		this(16 * 1024);
+	}
+
+	/**
+	 * Create a router with the settings of the configuration, also applied to every
+	 * connection (see setConfig).
+	 * @param config - the configuration
+	 */
+	public JWebSocketRouter(JWebSocketConfig config) {
+		this(config.getMaxConnections());
+		this.config = config;
+		if (config.getBufferSize() > 0)
+			this.bufferPool = new BufferPool(config.getBufferSize(), config.getMaxPooledBuffers());
+	}
+
+	/**
+	 * @param maxConnections - more connections are refused with 503 Service Unavailable
+	 */
+	public JWebSocketRouter(int maxConnections) {
+		this.root = new Node();
+		this.connections = new ConnectionRegistry(maxConnections);
+		this.workers = Executors.newCachedThreadPool(new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "JWebSocket-connection-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Called when the server is listening, before the first connection is accepted.
+	 */
+	protected void onServerStarted(ServerSocket server) {
+	}
+
+	/**
+	 * Map a path to an endpoint. A segment between braces is a parameter, that matches any
+	 * value, like /chat/{room}. A literal segment has precedence over a parameter.
+	 * @param pattern - the path pattern
+	 * @param factory - creates the instance that will keep each connection
+	 * @return this router, to chain the routes
+	 */
+	public JWebSocketRouter route(String pattern, Supplier<? extends JWebSocket> factory) {
+		Node node = this.root;
+		for (String segment : segments(pattern)) {
+			if (segment.startsWith("{") && segment.endsWith("}")) {
+				String name = segment.substring(1, segment.length() - 1);
+				if (node.parameter == null) {
+					node.parameter = new Node();
+					node.parameterName = name;
+				} else if (!node.parameterName.equals(name)) {
+					throw new IllegalArgumentException("Parameter {" + name + "} conflicts with {"
+							+ node.parameterName + "} in " + pattern);
+				}
+				node = node.parameter;
+			} else {
+				Node next = node.literals.get(segment);
+				if (next == null) {
+					next = new Node();
+					node.literals.put(segment, next);
+				}
+				node = next;
+			}
+		}
+
+		if (node.factory != null)
+			throw new IllegalArgumentException("Route already registered: " + pattern);
+		node.factory = factory;
+		return this;
+	}
+
+	/**
+	 * Answer the plain HTTP requests with the files of the directory. Files up to 64KB are
+	 * kept in memory (up to 16MB in total).
+	 * @param directory - the directory with the files, like the WebContent of a web project
+	 * @throws IOException - if the directory doesn't exist
+	 */
+	public void setStaticDirectory(File directory) throws IOException {
+		this.setStaticFiles(new StaticFileHandler(directory, 64 * 1024, 16 * 1024 * 1024));
+	}
+
+	/**
+	 * @param staticFiles - answers the plain HTTP requests, or null to refuse them
+	 */
+	public void setStaticFiles(StaticFileHandler staticFiles) {
+		this.staticFiles = staticFiles;
+	}
+
+	/**
+	 * @param bufferPool - the pool shared by every connection
+	 */
+	public void setBufferPool(BufferPool bufferPool) {
+		this.bufferPool = bufferPool;
+	}
+
+	/**
+	 * Change the configuration. The ping, idle timeout, maximum message size, keep-alive and
+	 * outbound settings are applied to the open connections too, the flow control only to the new
+	 * ones. The maximum of connections and the buffer pool are kept until a restart.
+	 * @param config - the new configuration
+	 */
+	public void setConfig(final JWebSocketConfig config) {
+		JWebSocketConfig previous = this.config;
+		if (previous != null && !previous.restartRequired(config).isEmpty())
+			System.out.println("Settings only applied after a restart: " + previous.restartRequired(config));
+
+		this.config = config;
+		this.connections.forEach(new ConnectionRegistry.Visitor() {
+			@Override
+			public void visit(long id, JWebSocket connection) {
+				connection.setConfig(config);
+			}
+		});
+	}
+
+	/**
+	 * Reload the configuration file whenever it changes (see ConfigWatcher).
+	 * @param file - the properties file, usually the one this router was created with
+	 * @param intervalMillis - time between the checks of the file
+	 * @return the watcher, to be closed when the server stops
+	 * @throws IOException - if the file can't be read
+	 */
+	public ConfigWatcher watchConfig(File file, long intervalMillis) throws IOException {
+		ConfigWatcher watcher = new ConfigWatcher(file, intervalMillis, new ConfigWatcher.Listener() {
+			@Override
+			public void configChanged(JWebSocketConfig config) {
+				setConfig(config);
+			}
+		});
+		this.setConfig(watcher.getConfig());
+		return watcher;
+	}
+
+	/**
+	 * Enable the session resume of JWebSocket.enableSessionResume for every route. As each
+	 * connection is a new instance, the replay buffers are kept here, one for each session,
+	 * and the client is told the id of its session in a cookie (see SessionStore). A browser
+	 * sends the cookie back when it reconnects, other clients can send the id in the
+	 * session query parameter, like ws://host:port/chat?session=id&resume=42.
+	 * @param maxMessages - maximum number of messages kept to be replayed, for each session
+	 * @param maxBytes - maximum number of bytes kept to be replayed, for each session
+	 * @param offHeap - keep the messages out of the java heap
+	 * @param sessionTimeoutMillis - how long a session is kept after its connection ends
+	 */
+	public void enableSessionResume(int maxMessages, int maxBytes, boolean offHeap, long sessionTimeoutMillis) {
+		this.sessions = new SessionStore(maxMessages, maxBytes, offHeap, sessionTimeoutMillis);
+	}
+
+	/**
+	 * @param tracer - traces the messages of every connection, or null
+	 */
+	public void setTracer(MessageTracer tracer) {
+		this.tracer = tracer;
+	}
+
+	/**
+	 * Listen the given port and keep accepting connections until shutdown is called.
+	 * @param port
+	 * @throws IOException - when the port can't be listened
+	 */
+	public void start(int port) throws IOException {
+		this.server = ServerSocketChannel.open();
+		this.server.bind(new InetSocketAddress(port));
+		this.onServerStarted(this.server.socket());
+		this.prewarm();
+
+		try {
+			while (true) {
+				final SocketChannel channel = this.server.accept();
+				this.workers.execute(new Runnable() {
+					@Override
+					public void run() {
+						handle(channel);
+					}
+				});
+			}
+		} catch (ClosedChannelException e) {
+			// shutdown
+		}
+	}
+
+	/**
+	 * Warm up, in the background, what the first connections would otherwise pay for:
+	 * the buffers of the pool and the first use of the codec and of the handshake digest.
+	 * Nothing of it is done before listening, so a restarted server accepts at once.
+	 */
+	private void prewarm() {
+		final JWebSocketConfig config = this.config != null ? this.config : JWebSocketConfig.defaults();
+		final BufferPool pool = this.bufferPool != null ? this.bufferPool : BufferPool.shared();
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					JWebSocket.acceptKey("dGhlIHNhbXBsZSBub25jZQ==");
+				} catch (NoSuchAlgorithmException e) {
+					System.out.println("SHA-1 hasn't been found to digest message!!!");
+				}
+				byte[] frame = FrameCodec.encode(new byte[16], FrameCodec.opcodeValue(JWebSocket.TEXT_OPCODE), true,
+						new FrameCodec.MaskGenerator().nextMask());
+				FrameCodec.decode(ByteBuffer.wrap(frame));
+
+				pool.prewarm(config.getPrewarmBuffers());
+			}
+		}, "JWebSocket-prewarm");
+		thread.setDaemon(true);
+		thread.setPriority(Thread.MIN_PRIORITY);
+		thread.start();
+	}
+
+	/**
+	 * Stop accepting connections and close every connection gracefully (see JWebSocket.shutdown).
+	 * @param timeoutMillis - maximum time to wait for the clients
+	 * @return how many connections were drained cleanly
+	 */
+	public int shutdown(final long timeoutMillis) {
+		try {
+			if (this.server != null)
+				this.server.close();
+		} catch (IOException e) {
+			System.out.println("Error when trying to close the server!!!");
+		}
+
+		final List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+		this.connections.forEach(new ConnectionRegistry.Visitor() {
+			@Override
+			public void visit(long id, final JWebSocket connection) {
+				results.add(workers.submit(new Callable<Boolean>() {
+					@Override
+					public Boolean call() {
+						return connection.shutdown(timeoutMillis);
+					}
+				}));
+			}
+		});
+
+		int drained = 0;
+		for (Future<Boolean> result : results) {
+			try {
+				if (result.get())
+					drained++;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (ExecutionException e) {
+				e.printStackTrace();
+			}
+		}
+		this.workers.shutdown();
+		return drained;
+	}
+
+	/**
+	 * @return how many connections are open
+	 */
+	public int getConnectionCount() {
+		return this.connections.size();
+	}
+
+	/**
+	 * @return the open connections, to look them up by id (see JWebSocket.getConnectionId)
+	 * and to query their counters
+	 */
+	public ConnectionRegistry getConnections() {
+		return this.connections;
+	}
+
+	/**
+	 * Send a text message to every open connection. The frame is encoded only once.
+	 * @param text - the message
+	 * @return how many connections received the message
+	 */
+	public int broadcastTextMessage(String text) {
+		try {
+			return this.broadcast(text.getBytes("UTF-8"), JWebSocket.TEXT_OPCODE);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Send a binary message to every open connection. The frame is encoded only once.
+	 * @param data - the message
+	 * @return how many connections received the message
+	 */
+	public int broadcastBinaryMessage(byte[] data) {
+		return this.broadcast(data, JWebSocket.BINARY_OPCODE);
+	}
+
+	private int broadcast(final byte[] data, final String opcode) {
+		final byte[] frame = FrameCodec.encode(data, FrameCodec.opcodeValue(opcode), true, null);
+		final int[] sent = new int[1];
+		this.connections.forEach(new ConnectionRegistry.Visitor() {
+			@Override
+			public void visit(long id, JWebSocket connection) {
+				try {
+					connection.sendFrame(null, data, opcode, frame);
+					sent[0]++;
+				} catch (IOException e) {
+					// this connection is closing, the others still receive the message
+					System.out.println("Error when trying to broadcast to connection " + id + "!!!");
+				}
+			}
+		});
+		return sent[0];
+	}
+
+	private void handle(SocketChannel channel) {
+		Socket socket = channel.socket();
+		try {
+			HttpRequest request = HttpRequest.read(socket.getInputStream());
+			while (request != null && !request.isUpgrade() && this.staticFiles != null) {
+				if (!this.staticFiles.serve(channel, request)) {
+					socket.close();
+					return;
+				}
+				// keep-alive: wait the next request (maybe the handshake) for a while
+				JWebSocketConfig config = this.config;
+				socket.setSoTimeout(config != null ? config.getKeepAliveTimeout() : KEEP_ALIVE_TIMEOUT);
+				request = HttpRequest.read(socket.getInputStream(), request.getRemaining());
+			}
+			socket.setSoTimeout(0);
+
+			if (request == null) {
+				socket.close();
+				return;
+			}
+
+			Map<String, String> parameters = new HashMap<String, String>();
+			Supplier<? extends JWebSocket> factory = this.resolve(request.getPath(), parameters);
+			if (factory == null) {
+				this.respond(socket, "404 Not Found");
+				return;
+			}
+			if (!request.isUpgrade()) {
+				this.respond(socket, "400 Bad Request");
+				return;
+			}
+
+			JWebSocket connection = factory.get();
+			if (this.bufferPool != null)
+				connection.setBufferPool(this.bufferPool);
+			if (this.tracer != null)
+				connection.setTracer(this.tracer);
+			if (this.sessions != null)
+				connection.setSessionStore(this.sessions);
+			JWebSocketConfig config = this.config;
+			if (config != null) {
+				connection.setConfig(config);
+				if (config.getInboundHighWatermark() > 0)
+					connection.enableFlowControl(config.getInboundHighWatermark(), config.getInboundLowWatermark());
+			}
+
+			long id = this.connections.register(connection);
+			if (id == -1) {
+				this.respond(socket, "503 Service Unavailable");
+				return;
+			}
+			connection.setRegistration(this.connections, id);
+			try {
+				connection.serve(socket, request, Collections.unmodifiableMap(parameters));
+			} finally {
+				this.connections.unregister(id);
+			}
+		} catch (HttpRequest.BadRequestException e) {
+			try {
+				this.respond(socket, "400 Bad Request");
+			} catch (IOException e1) {
+				// the client is gone
+			}
+		} catch (IOException e) {
+			if (!(e instanceof SocketTimeoutException))
+				System.out.println("Error when trying to read handshake data!!!");
+		} catch (RuntimeException e) {
+			System.out.println("Error when trying to handle a connection!!!");
+			e.printStackTrace();
+		} finally {
+			// the socket is already closed unless something failed
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// already closing
+			}
+		}
+	}
+
+	private Supplier<? extends JWebSocket> resolve(String path, Map<String, String> parameters)
+			throws HttpRequest.BadRequestException {
+		return resolve(this.root, segments(path), 0, parameters);
+	}
+
+	/**
+	 * Match the segments from index on, below the node: first by the literal child, then,
+	 * when that branch has no route for the rest of the path, by the {parameter} child.
+	 */
+	private static Supplier<? extends JWebSocket> resolve(Node node, List<String> segments, int index,
+			Map<String, String> parameters) throws HttpRequest.BadRequestException {
+		if (index == segments.size())
+			return node.factory;
+
+		String segment = segments.get(index);
+		Node literal = node.literals.get(segment);
+		if (literal != null) {
+			Supplier<? extends JWebSocket> factory = resolve(literal, segments, index + 1, parameters);
+			if (factory != null)
+				return factory;
+		}
+		if (node.parameter == null)
+			return null;
+
+		Supplier<? extends JWebSocket> factory = resolve(node.parameter, segments, index + 1, parameters);
+		if (factory != null)
+			parameters.put(node.parameterName, HttpRequest.decodePath(segment));
+		return factory;
+	}
+
+	private void respond(Socket socket, String status) throws IOException {
+		OutputStream out = socket.getOutputStream();
+		out.write(("HTTP/1.1 " + status + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n").getBytes("UTF-8"));
+		socket.close();
+	}
+
+	private static List<String> segments(String path) {
+		List<String> segments = new ArrayList<String>();
+		for (String segment : path.split("/")) {
+			if (!segment.isEmpty())
+				segments.add(segment);
+		}
+		return segments;
+	}
+
+}
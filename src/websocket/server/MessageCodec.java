@@ -0,0 +1,47 @@
+package websocket;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Converts the messages of a subprotocol (JSON, a compact binary format, protobuf...)
+ * from and to the payload of the frames.
+ *
+ * Register it with JWebSocket.registerSubprotocol: when the browser asks for the
+ * subprotocol in the Sec-WebSocket-Protocol header, the messages received are decoded
+ * by the codec and given to the handler, instead of interpretClientTextMessage and
+ * interpretClientBinaryMessage.
+ *
+ * @param <T> - the type of the messages
+ */
+public interface MessageCodec<T> {
+
+	/**
+	 * @return the name of the subprotocol, as sent in Sec-WebSocket-Protocol
+	 */
+	String getSubprotocol();
+
+	/**
+	 * @return true if the messages are sent as text frames, false for binary frames
+	 */
+	boolean isText();
+
+	/**
+	 * Decode a message straight from the payload received, without copying it.
+	 * @param payload - the payload of the message, it is only valid during this call
+	 * @return the message
+	 * @throws IOException - if the payload is not a valid message
+	 */
+	T decode(ByteBuffer payload) throws IOException;
+
+	/**
+	 * Encode a message in the buffer (taken from the BufferPool).
+	 * @param message - the message to be encoded
+	 * @param out - where the payload must be written
+	 * @throws BufferOverflowException - if the buffer is too small, the encode is
+	 * repeated with a bigger buffer
+	 */
+	void encode(T message, ByteBuffer out) throws BufferOverflowException;
+
+}
@@ -0,0 +1,12 @@
+package websocket;
+
+/**
+ * Receives the messages decoded by a MessageCodec.
+ *
+ * @param <T> - the type of the messages
+ */
+public interface MessageHandler<T> {
+
+	void onMessage(T message);
+
+}
@@ -0,0 +1,267 @@
+package websocket;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Append-only journal of every frame received from and sent to the clients.
+ *
+ * The frames are appended to memory-mapped segment files by a single writer thread,
+ * so the thread that is reading or writing the socket only puts the frame in a queue.
+ * When a segment is full a new one is created, and the oldest are deleted when there
+ * are more than maxSegments. The segments are flushed to disk every flushInterval
+ * milliseconds.
+ *
+ * Each record is stored as:
+ *
+ * direction: 1 byte (1 - inbound, 2 - outbound, 0 - end of the segment)
+ * opcode: 1 byte
+ * timestamp: 8 bytes (System.currentTimeMillis() when the frame was recorded)
+ * length: 4 bytes
+ * payload: length bytes
+ */
+public class MessageJournal {
+
+	public static final byte INBOUND = 1, OUTBOUND = 2;
+	private static final int HEADER_SIZE = 14;
+	private static final String SEGMENT_PREFIX = "journal-", SEGMENT_SUFFIX = ".seg";
+
+	/**
+	 * Receives the records when the journal is replayed.
+	 */
+	public interface Listener {
+		void onRecord(long timestamp, boolean inbound, String opcode, byte[] payload);
+	}
+
+	private static class Entry {
+		final byte direction, opcode;
+		final long timestamp;
+		final byte[] payload;
+
+		Entry(byte direction, byte opcode, long timestamp, byte[] payload) {
+			this.direction = direction;
+			this.opcode = opcode;
+			this.timestamp = timestamp;
+			this.payload = payload;
+		}
+	}
+
+	private final File directory;
+	private final int segmentSize, maxSegments;
+	private final long flushInterval;
+	private final BlockingQueue<Entry> queue;
+	private final Thread writer;
+
+	private volatile boolean running;
+	private long segmentIndex;
+	private MappedByteBuffer segment;
+
+	/**
+	 * @param directory - where the segment files will be stored
+	 * @param segmentSize - size in bytes of each segment file
+	 * @param maxSegments - how many segments are kept, the oldest are deleted
+	 * @param flushInterval - interval in milliseconds to force the segment to disk
+	 * @throws IOException - when the directory can't be created or the first segment can't be mapped
+	 */
+	public MessageJournal(File directory, int segmentSize, int maxSegments, long flushInterval) throws IOException {
+		if (segmentSize <= HEADER_SIZE)
+			throw new IllegalArgumentException("Segment size is too small: " + segmentSize);
+		if (maxSegments < 1)
+			throw new IllegalArgumentException("At least one segment must be kept");
+		if (flushInterval <= 0)
+			throw new IllegalArgumentException("Flush interval must be positive: " + flushInterval);
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Can't create journal directory " + directory);
+
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.maxSegments = maxSegments;
+		this.flushInterval = flushInterval;
+		this.queue = new ArrayBlockingQueue<Entry>(8192);
+
+		File[] existing = this.listSegments();
+		this.segmentIndex = existing.length > 0 ? segmentIndexOf(existing[existing.length - 1]) : 0;
+		this.rollSegment();
+
+		this.running = true;
+		this.writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				writeLoop();
+			}
+		}, "JWebSocket-journal");
+		this.writer.setDaemon(true);
+		this.writer.start();
+	}
+
+	/**
+	 * Put a frame in the queue to be journaled. It only blocks when the writer is too far behind,
+	 * and the frame is dropped when the journal is closed or the writer has failed.
+	 * @param inbound - true if the frame was received, false if it was sent
+	 * @param opcode - the opcode of the frame, see JWebSocket opcodes
+	 * @param payload - the data of the frame (already unmasked)
+	 */
+	public void record(boolean inbound, String opcode, byte[] payload) {
+		if (!this.running)
+			return;
+
+		Entry entry = new Entry(inbound ? INBOUND : OUTBOUND, (byte) Integer.parseInt(opcode, 2),
+				System.currentTimeMillis(), payload);
+		try {
+			while (!this.queue.offer(entry, this.flushInterval, TimeUnit.MILLISECONDS)) {
+				// the writer is behind, keep waiting only while it is alive
+				if (!this.running)
+					return;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Read the journaled frames recorded between two instants, in the order they were recorded.
+	 * @param fromMillis - first timestamp to be replayed (inclusive)
+	 * @param toMillis - last timestamp to be replayed (inclusive)
+	 * @param listener - receives each record
+	 * @throws IOException - when some segment can't be read
+	 */
+	public void replay(long fromMillis, long toMillis, Listener listener) throws IOException {
+		for (File file : this.listSegments()) {
+			try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+				MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+				while (data.remaining() >= HEADER_SIZE) {
+					byte direction = data.get();
+					if (direction != INBOUND && direction != OUTBOUND)
+						break;
+
+					byte opcode = data.get();
+					long timestamp = data.getLong();
+					int length = data.getInt();
+					if (length < 0 || length > data.remaining())
+						break;
+
+					if (timestamp < fromMillis || timestamp > toMillis) {
+						data.position(data.position() + length);
+						continue;
+					}
+
+					byte[] payload = new byte[length];
+					data.get(payload);
+					listener.onRecord(timestamp, direction == INBOUND, opcodeBits(opcode), payload);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Write everything that is still in the queue and stop the writer thread.
+	 */
+	public void close() {
+		// no interrupt here, it would close the segment channel in the middle of a write
+		this.running = false;
+		try {
+			this.writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void writeLoop() {
+		long lastFlush = System.currentTimeMillis();
+		try {
+			while (this.running || !this.queue.isEmpty()) {
+				Entry entry = null;
+				try {
+					entry = this.queue.poll(this.flushInterval, TimeUnit.MILLISECONDS);
+				} catch (InterruptedException e) {
+					break;
+				}
+
+				if (entry != null)
+					this.append(entry);
+
+				if (System.currentTimeMillis() - lastFlush >= this.flushInterval) {
+					this.segment.force();
+					lastFlush = System.currentTimeMillis();
+				}
+			}
+			this.segment.force();
+		} catch (IOException | RuntimeException e) {
+			System.out.println("Error when trying to write the message journal, journaling stopped!!!");
+			e.printStackTrace();
+		} finally {
+			// nothing else will take from the queue, record must not wait for it
+			this.running = false;
+			this.queue.clear();
+		}
+	}
+
+	private void append(Entry entry) throws IOException {
+		int size = HEADER_SIZE + entry.payload.length;
+		if (size > this.segmentSize) {
+			System.out.println("Frame with " + entry.payload.length + " bytes is bigger than a journal segment");
+			return;
+		}
+		if (this.segment.remaining() < size)
+			this.rollSegment();
+
+		this.segment.put(entry.direction);
+		this.segment.put(entry.opcode);
+		this.segment.putLong(entry.timestamp);
+		this.segment.putInt(entry.payload.length);
+		this.segment.put(entry.payload);
+	}
+
+	private void rollSegment() throws IOException {
+		if (this.segment != null)
+			this.segment.force();
+
+		this.segmentIndex++;
+		File file = new File(this.directory, String.format("%s%020d%s", SEGMENT_PREFIX, this.segmentIndex, SEGMENT_SUFFIX));
+		// the mapping stays valid after the file is closed
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw"); FileChannel channel = raf.getChannel()) {
+			this.segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, this.segmentSize);
+		}
+
+		File[] segments = this.listSegments();
+		for (int i = 0; i < segments.length - this.maxSegments; i++) {
+			if (!segments[i].delete())
+				System.out.println("Can't delete old journal segment " + segments[i]);
+		}
+	}
+
+	private File[] listSegments() {
+		File[] files = this.directory.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+			}
+		});
+		if (files == null)
+			return new File[0];
+		Arrays.sort(files);
+		return files;
+	}
+
+	private static long segmentIndexOf(File file) {
+		String name = file.getName();
+		return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+	}
+
+	private static String opcodeBits(byte opcode) {
+		String bits = Integer.toBinaryString(opcode & 0xF);
+		while (bits.length() < 4)
+			bits = "0".concat(bits);
+		return bits;
+	}
+
+}
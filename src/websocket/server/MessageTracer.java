@@ -0,0 +1,220 @@
+package websocket;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Sampling tracer of the time spent by the messages in each stage of a connection, from
+ * the socket read to the socket write, to find which stage makes the slow messages slow.
+ *
+ * The sampling decision (1 in sampleRate messages) is made once per message, when its
+ * first frame is received or when it is sent, and its trace id is carried through every
+ * stage: a sampled message has all its stages recorded, with the same id, and the other
+ * messages have none. The samples are kept in a ring of primitive longs written without
+ * locks: the oldest ones are overwritten, and a sample being overwritten while it is read
+ * is skipped.
+ *
+ * The samples can be read by getStageSummary and getRecentSamples, also through JMX after
+ * registerMBean.
+ */
+public class MessageTracer implements MessageTracerMXBean {
+
+	public enum Stage {
+		/**
+		 * from the socket read that brought the first bytes of the frame to the read that
+		 * completed it (0 when one read brought the whole frame), the wait for the client
+		 * between the reads is not counted
+		 */
+		READ,
+		/** frame header and payload taken from the bytes received */
+		PARSE,
+		/** payload unmasked */
+		UNMASK,
+		/** time in the InboundQueue (see JWebSocket.enableFlowControl) */
+		DISPATCH_WAIT,
+		/** interpretClientTextMessage, interpretClientBinaryMessage or the MessageHandler */
+		HANDLER,
+		/** frame (or typed message) encoded to be sent */
+		ENCODE,
+		/** time in the OutboundQueue (see JWebSocket.enableConflation) */
+		WRITE_WAIT,
+		/** socket write */
+		WRITE
+	}
+
+	// the longs of each sample, 8 longs (a cache line) per sample
+	private static final int SEQUENCE = 0, STAGE = 1, CONNECTION = 2, START = 3, DURATION = 4, TRACE = 5,
+			STRIDE = 8;
+
+	private static final Stage[] STAGES = Stage.values();
+
+	private final AtomicLongArray ring;
+	private final int mask;
+	private final AtomicLong cursor, traces;
+	private volatile long resetAt;
+	private volatile int sampleRate;
+
+	/**
+	 * @param sampleRate - trace 1 in sampleRate messages, 0 to start with tracing off
+	 * @param capacity - how many samples are kept, rounded up to a power of 2
+	 */
+	public MessageTracer(int sampleRate, int capacity) {
+		if (capacity <= 0)
+			throw new IllegalArgumentException("Capacity must be positive");
+
+		this.setSampleRate(sampleRate);
+		int size = Integer.highestOneBit(capacity);
+		if (size < capacity)
+			size <<= 1;
+		this.ring = new AtomicLongArray(size * STRIDE);
+		this.mask = size - 1;
+		this.cursor = new AtomicLong();
+		this.traces = new AtomicLong();
+	}
+
+	/**
+	 * Decide if a new message is traced.
+	 * @return the trace id of the message, given to record for each of its stages, or 0
+	 * if it is not traced
+	 */
+	public long sample() {
+		int rate = this.sampleRate;
+		if (rate == 1 || (rate > 1 && ThreadLocalRandom.current().nextInt(rate) == 0))
+			return this.traces.incrementAndGet();
+		return 0;
+	}
+
+	/**
+	 * Record a sample.
+	 * @param stage - the stage
+	 * @param connectionId - the id of the connection (see JWebSocket.getConnectionId)
+	 * @param trace - the trace id of the message (see sample)
+	 * @param startNanos - System.nanoTime() when the stage started
+	 * @param endNanos - System.nanoTime() when the stage ended
+	 */
+	public void record(Stage stage, long connectionId, long trace, long startNanos, long endNanos) {
+		long sequence = this.cursor.getAndIncrement();
+		int base = (int) (sequence & this.mask) * STRIDE;
+
+		// the sequence is invalid while the sample is written, so readers skip it
+		this.ring.set(base + SEQUENCE, -1);
+		this.ring.lazySet(base + STAGE, stage.ordinal());
+		this.ring.lazySet(base + CONNECTION, connectionId);
+		this.ring.lazySet(base + START, startNanos);
+		this.ring.lazySet(base + DURATION, endNanos - startNanos);
+		this.ring.lazySet(base + TRACE, trace);
+		this.ring.set(base + SEQUENCE, sequence);
+	}
+
+	/**
+	 * Register this tracer in the platform MBeanServer, as websocket:type=MessageTracer,name=...
+	 * @param name - distinguishes the tracers of the same JVM
+	 * @return the name of the MBean
+	 * @throws JMException - if the name is invalid or already registered
+	 */
+	public ObjectName registerMBean(String name) throws JMException {
+		ObjectName objectName = new ObjectName("websocket:type=MessageTracer,name=" + ObjectName.quote(name));
+		ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+		return objectName;
+	}
+
+	@Override
+	public int getSampleRate() {
+		return this.sampleRate;
+	}
+
+	@Override
+	public void setSampleRate(int sampleRate) {
+		if (sampleRate < 0)
+			throw new IllegalArgumentException("Sample rate can't be negative");
+		this.sampleRate = sampleRate;
+	}
+
+	@Override
+	public long getRecordedCount() {
+		return this.cursor.get() - this.resetAt;
+	}
+
+	@Override
+	public String[] getStageSummary() {
+		long[][] samples = this.snapshot();
+		long[][] durations = new long[STAGES.length][];
+		int[] counts = new int[STAGES.length];
+		for (int stage = 0; stage < STAGES.length; stage++)
+			durations[stage] = new long[samples.length];
+		for (long[] sample : samples) {
+			int stage = (int) sample[STAGE];
+			durations[stage][counts[stage]++] = sample[DURATION];
+		}
+
+		List<String> summary = new ArrayList<String>();
+		for (int stage = 0; stage < STAGES.length; stage++) {
+			int count = counts[stage];
+			if (count == 0)
+				continue;
+			long[] sorted = Arrays.copyOf(durations[stage], count);
+			Arrays.sort(sorted);
+			long total = 0;
+			for (long duration : sorted)
+				total += duration;
+			summary.add(String.format("%s count=%d avg=%.1fus p50=%.1fus p99=%.1fus max=%.1fus", STAGES[stage],
+					count, total / 1000.0 / count, sorted[(count - 1) / 2] / 1000.0,
+					sorted[(int) Math.ceil(count * 0.99) - 1] / 1000.0, sorted[count - 1] / 1000.0));
+		}
+		return summary.toArray(new String[summary.size()]);
+	}
+
+	@Override
+	public String[] getRecentSamples() {
+		long now = System.nanoTime();
+		long[][] samples = this.snapshot();
+		String[] lines = new String[samples.length];
+		for (int i = 0; i < samples.length; i++) {
+			long[] sample = samples[i];
+			lines[i] = String.format("#%d %s connection=%d message=%d duration=%.1fus %dms ago", sample[SEQUENCE],
+					STAGES[(int) sample[STAGE]], sample[CONNECTION], sample[TRACE], sample[DURATION] / 1000.0,
+					(now - sample[START]) / 1000000);
+		}
+		return lines;
+	}
+
+	@Override
+	public void reset() {
+		this.resetAt = this.cursor.get();
+	}
+
+	/**
+	 * @return a copy of the samples still in the ring, the oldest first
+	 */
+	private long[][] snapshot() {
+		long end = this.cursor.get();
+		long start = Math.max(this.resetAt, end - (this.mask + 1));
+		List<long[]> samples = new ArrayList<long[]>();
+		for (long sequence = start; sequence < end; sequence++) {
+			int base = (int) (sequence & this.mask) * STRIDE;
+			if (this.ring.get(base + SEQUENCE) != sequence)
+				continue;
+			long[] sample = new long[STRIDE];
+			sample[SEQUENCE] = sequence;
+			sample[STAGE] = this.ring.get(base + STAGE);
+			sample[CONNECTION] = this.ring.get(base + CONNECTION);
+			sample[START] = this.ring.get(base + START);
+			sample[DURATION] = this.ring.get(base + DURATION);
+			sample[TRACE] = this.ring.get(base + TRACE);
+			// overwritten while it was copied
+			if (this.ring.get(base + SEQUENCE) != sequence)
+				continue;
+			samples.add(sample);
+		}
+		return samples.toArray(new long[samples.size()][]);
+	}
+
+}
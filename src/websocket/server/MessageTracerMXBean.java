@@ -0,0 +1,40 @@
+package websocket;
+
+/**
+ * The MessageTracer as seen in JConsole or VisualVM (see MessageTracer.registerMBean).
+ */
+public interface MessageTracerMXBean {
+
+	/**
+	 * @return 1 in how many messages is traced, 0 when tracing is off
+	 */
+	int getSampleRate();
+
+	/**
+	 * @param sampleRate - trace 1 in sampleRate messages, 0 to turn tracing off
+	 */
+	void setSampleRate(int sampleRate);
+
+	/**
+	 * @return how many stages were recorded since the last reset
+	 */
+	long getRecordedCount();
+
+	/**
+	 * @return one line per stage, with the count, the average, the p50, p99 and max
+	 * latencies of the samples still in the ring
+	 */
+	String[] getStageSummary();
+
+	/**
+	 * @return the samples still in the ring, the oldest first (the samples of the same
+	 * message have the same message id)
+	 */
+	String[] getRecentSamples();
+
+	/**
+	 * Forget every sample.
+	 */
+	void reset();
+
+}
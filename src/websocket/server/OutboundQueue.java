@@ -0,0 +1,391 @@
+package websocket;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Queue of the messages waiting to be written to a client.
+ *
+ * A message can be sent with a key (the ticker symbol, the id of the object being
+ * updated...). While a message with the same key is still waiting in the queue, the
+ * newer message replaces the older one, in the same position of the queue, so a slow
+ * client only receives the last state of each key instead of every update.
+ * Messages without a key are never replaced.
+ *
+ * The messages wait in three lanes, and the next frame written comes from the first lane
+ * that has one: control frames (ping, pong, close), then small messages, then bulk
+ * messages. A bulk message can be written in fragments, one frame for each poll, so a
+ * control frame waits for one fragment at most, never for the whole message. Only control
+ * frames can go between the fragments of a message (RFC 6455), so a small message waits
+ * for the end of the fragmented message being written, but it is written before the bulk
+ * messages that didn't start yet.
+ *
+ * When the queue is empty and nothing is being written, the sender can write the message
+ * itself (see tryWriteDirectly) instead of handing it to the writer thread. The direct write
+ * is a single non-blocking write: what the socket doesn't take is put in front of the queue
+ * (see offerRemainder), and the next messages go through the queue until the writer thread
+ * has written it.
+ */
+public class OutboundQueue {
+
+	public enum Lane {
+		CONTROL, SMALL, BULK
+	}
+
+	public static class Message {
+		private final Object key;
+		private final String opcode;
+		private final Lane lane;
+		private byte[] payload, frame;
+		private int fragmentSize;
+		private final boolean remainder;
+		private final long queuedAt;
+		private long trace;
+		// the payload bytes taken by poll, and the fragment taken by the last poll
+		private int taken, fragmentOffset, fragmentLength;
+
+		Message(Object key, String opcode, Lane lane, byte[] payload, byte[] frame, int fragmentSize, long trace) {
+			this(key, opcode, lane, payload, frame, fragmentSize, false, trace);
+		}
+
+		private Message(Object key, String opcode, Lane lane, byte[] payload, byte[] frame, int fragmentSize,
+				boolean remainder, long trace) {
+			this.key = key;
+			this.opcode = opcode;
+			this.lane = lane;
+			this.payload = payload;
+			this.frame = frame;
+			this.fragmentSize = fragmentSize;
+			this.remainder = remainder;
+			this.queuedAt = System.nanoTime();
+			this.trace = trace;
+		}
+
+		public String getOpcode() {
+			return this.opcode;
+		}
+
+		public byte[] getPayload() {
+			return this.payload;
+		}
+
+		/**
+		 * @return the frame with the whole message, it can be null when the message is
+		 * fragmented
+		 */
+		public byte[] getFrame() {
+			return this.frame;
+		}
+
+		/**
+		 * @return true if the message is written in fragments, see getFragmentOffset and
+		 * getFragmentLength
+		 */
+		public boolean isFragmented() {
+			return this.fragmentSize > 0;
+		}
+
+		/**
+		 * @return true if the frame is the end of a frame partly written directly: it is
+		 * written as it is, the message was already recorded when it was started
+		 */
+		public boolean isRemainder() {
+			return this.remainder;
+		}
+
+		/**
+		 * @return the first byte of the payload in the fragment to be written
+		 */
+		public int getFragmentOffset() {
+			return this.fragmentOffset;
+		}
+
+		/**
+		 * @return the size of the fragment to be written
+		 */
+		public int getFragmentLength() {
+			return this.fragmentLength;
+		}
+
+		/**
+		 * @return true if the frame to be written is the first (or the only) one of the message
+		 */
+		public boolean isFirstFrame() {
+			return this.fragmentOffset == 0;
+		}
+
+		/**
+		 * @return System.nanoTime() when the message was put in the queue (a conflated
+		 * message keeps the time of the message it replaced, as it keeps its place)
+		 */
+		public long getQueuedAt() {
+			return this.queuedAt;
+		}
+
+		/**
+		 * @return the trace id of the message (see MessageTracer.sample), 0 if it isn't traced
+		 */
+		public long getTrace() {
+			return this.trace;
+		}
+	}
+
+	private final ArrayDeque<Message> control, small, bulk;
+	private final Map<Object, Message> pending;
+
+	private int smallMessageSize;
+	private long conflated, direct;
+	private boolean writing, closed;
+
+	/**
+	 * Create a queue where every data message is small, so they keep their order.
+	 */
+	public OutboundQueue() {
+		this(Integer.MAX_VALUE);
+	}
+
+	/**
+	 * @param smallMessageSize - data messages up to this size go in the SMALL lane
+	 */
+	public OutboundQueue(int smallMessageSize) {
+		this.control = new ArrayDeque<Message>();
+		this.small = new ArrayDeque<Message>();
+		this.bulk = new ArrayDeque<Message>();
+		this.pending = new HashMap<Object, Message>();
+		this.smallMessageSize = smallMessageSize;
+		this.conflated = 0;
+	}
+
+	/**
+	 * @param smallMessageSize - data messages up to this size go in the SMALL lane, the
+	 * messages already waiting keep their lane
+	 */
+	public synchronized void setSmallMessageSize(int smallMessageSize) {
+		this.smallMessageSize = smallMessageSize;
+	}
+
+	/**
+	 * Put a message at the end of its lane, to be written in one frame.
+	 * @see #offer(Object, String, byte[], byte[], int, long)
+	 */
+	public void offer(Object key, String opcode, byte[] payload, byte[] frame) {
+		this.offer(key, opcode, payload, frame, 0, 0);
+	}
+
+	/**
+	 * Put a message at the end of its lane, or replace the message with the same key that
+	 * is still waiting (a replaced message keeps its lane and its place).
+	 * @param key - the conflation key, or null if the message must never be replaced
+	 * @param opcode - the opcode of the message
+	 * @param payload - the data of the message
+	 * @param frame - the frame to be written, it can be null when the message is fragmented
+	 * @param fragmentSize - maximum payload of each fragment, 0 to write the whole frame
+	 * @param trace - the trace id of the message, 0 if it isn't traced
+	 */
+	public synchronized void offer(Object key, String opcode, byte[] payload, byte[] frame, int fragmentSize,
+			long trace) {
+		if (this.closed)
+			return;
+		if (key != null) {
+			Message waiting = this.pending.get(key);
+			if (waiting != null && waiting.opcode.equals(opcode)) {
+				waiting.payload = payload;
+				waiting.frame = frame;
+				waiting.fragmentSize = fragmentSize;
+				waiting.trace = trace;
+				this.conflated++;
+				return;
+			}
+		}
+
+		Lane lane = FrameCodec.opcodeValue(opcode) >= 0x8 ? Lane.CONTROL
+				: payload.length <= this.smallMessageSize ? Lane.SMALL : Lane.BULK;
+		Message message = new Message(key, opcode, lane, payload, frame, fragmentSize, trace);
+		this.lane(lane).addLast(message);
+		if (key != null)
+			this.pending.put(key, message);
+		this.notifyAll();
+	}
+
+	/**
+	 * Put the bytes of a frame that a direct write couldn't write before everything else,
+	 * as the frames written next can't start before it ends.
+	 * @param rest - the bytes of the frame not written yet
+	 * @param trace - the trace id of the message, its write is traced when the rest is written
+	 */
+	public synchronized void offerRemainder(byte[] rest, long trace) {
+		if (this.closed)
+			return;
+		this.control.addFirst(new Message(null, JWebSocket.CONTINUOUS_MSG_OPCODE, Lane.CONTROL, rest, rest, 0, true,
+				trace));
+		this.notifyAll();
+	}
+
+	/**
+	 * Take the next frame to be written, waiting for it at most the given time. A fragmented
+	 * message is returned once for each fragment, with the offset and the length of the
+	 * fragment to be written.
+	 * @param timeout - maximum time to wait, in milliseconds
+	 * @return the message, or null if the queue is still empty (or a direct write is
+	 * still running)
+	 * @throws InterruptedException
+	 */
+	public synchronized Message poll(long timeout) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeout;
+		Message message;
+		while ((message = this.next()) == null || this.writing) {
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0)
+				return null;
+			this.wait(remaining);
+		}
+
+		if (message.taken == 0 && message.key != null && this.pending.get(message.key) == message)
+			this.pending.remove(message.key);
+
+		int remaining = message.payload.length - message.taken;
+		message.fragmentOffset = message.taken;
+		message.fragmentLength = message.isFragmented() ? Math.min(message.fragmentSize, remaining) : remaining;
+		message.taken += message.fragmentLength;
+		if (message.taken == message.payload.length)
+			this.lane(message.lane).pollFirst();
+
+		this.writing = true;
+		return message;
+	}
+
+	/**
+	 * @return the message of the next frame, without taking it
+	 */
+	private Message next() {
+		if (!this.control.isEmpty())
+			return this.control.peekFirst();
+
+		// the fragmented message already started must end before another data message
+		Message bulk = this.bulk.peekFirst();
+		if (bulk != null && bulk.taken > 0)
+			return bulk;
+		if (!this.small.isEmpty())
+			return this.small.peekFirst();
+		return bulk;
+	}
+
+	private ArrayDeque<Message> lane(Lane lane) {
+		switch (lane) {
+		case CONTROL:
+			return this.control;
+		case SMALL:
+			return this.small;
+		default:
+			return this.bulk;
+		}
+	}
+
+	/**
+	 * Tell the queue that the last message taken was written (or failed).
+	 */
+	public synchronized void written() {
+		this.writing = false;
+		this.notifyAll();
+	}
+
+	/**
+	 * Check if the sender can write a message itself, skipping the queue: nothing is
+	 * waiting and nothing is being written. When it returns true, the sender must write
+	 * the message (or offer its remainder) and call writtenDirectly.
+	 * @return true if the message can be written directly
+	 */
+	public synchronized boolean tryWriteDirectly() {
+		if (!this.isEmpty() || this.writing)
+			return false;
+		this.writing = true;
+		this.direct++;
+		return true;
+	}
+
+	/**
+	 * Tell the queue that the message written directly was written (or failed).
+	 */
+	public synchronized void writtenDirectly() {
+		this.writing = false;
+		this.notifyAll();
+	}
+
+	/**
+	 * Wait until every message is taken from the queue and written.
+	 * @param timeout - maximum time to wait, in milliseconds
+	 * @return true if the queue is empty, false if it is still writing or it was closed
+	 * @throws InterruptedException
+	 */
+	public synchronized boolean awaitEmpty(long timeout) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeout;
+		while (!this.isEmpty() || this.writing) {
+			if (this.closed)
+				return false;
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0)
+				return false;
+			this.wait(remaining);
+		}
+		return true;
+	}
+
+	/**
+	 * Discard the messages waiting and stop accepting new ones, when the connection can't
+	 * be written anymore.
+	 */
+	public synchronized void close() {
+		this.closed = true;
+		this.control.clear();
+		this.small.clear();
+		this.bulk.clear();
+		this.pending.clear();
+		this.notifyAll();
+	}
+
+	/**
+	 * Accept messages again, for a new connection.
+	 */
+	public synchronized void reopen() {
+		this.closed = false;
+	}
+
+	public synchronized boolean isClosed() {
+		return this.closed;
+	}
+
+	/**
+	 * @return how many messages are waiting, including the fragmented message being written
+	 */
+	public synchronized int size() {
+		return this.control.size() + this.small.size() + this.bulk.size();
+	}
+
+	/**
+	 * @param lane - the lane
+	 * @return how many messages are waiting in the lane
+	 */
+	public synchronized int size(Lane lane) {
+		return this.lane(lane).size();
+	}
+
+	public synchronized boolean isEmpty() {
+		return this.control.isEmpty() && this.small.isEmpty() && this.bulk.isEmpty();
+	}
+
+	/**
+	 * @return how many messages were replaced by a newer one before being sent
+	 */
+	public synchronized long getConflatedCount() {
+		return this.conflated;
+	}
+
+	/**
+	 * @return how many messages were written directly by the sender
+	 */
+	public synchronized long getDirectCount() {
+		return this.direct;
+	}
+
+}
@@ -0,0 +1,110 @@
+package websocket;
+
+/**
+ * Limits of messages per second and bytes per second received from the clients.
+ *
+ * There are limits for each connection and global limits, shared by every connection
+ * that uses the same RateLimiter. A limit equal to 0 means no limit. When a message
+ * goes over a limit, the action tells what to do:
+ *
+ * THROTTLE - stop reading the socket until there are tokens again (TCP backpressure)
+ *
+ * DROP - discard the message
+ *
+ * CLOSE - close the connection with status 1008 (policy violation)
+ */
+public class RateLimiter {
+
+	public enum Action {
+		THROTTLE, DROP, CLOSE
+	}
+
+	/**
+	 * The buckets of a single connection.
+	 */
+	public class Limits {
+		private final TokenBucket messages, bytes;
+		// messages and bytes alternate: even buckets count messages, odd ones count bytes
+		private final TokenBucket[] buckets;
+
+		private Limits() {
+			this.messages = messagesPerSecond > 0 ? new TokenBucket(messagesPerSecond, messagesPerSecond) : null;
+			this.bytes = bytesPerSecond > 0 ? new TokenBucket(bytesPerSecond, bytesPerSecond) : null;
+			this.buckets = new TokenBucket[] { this.messages, this.bytes, globalMessages, globalBytes };
+		}
+
+		/**
+		 * Take one message and the given amount of bytes from the buckets. Either every
+		 * bucket is taken from or none is: when one refuses, the tokens already taken from
+		 * the others are given back.
+		 * @param size - size of the message
+		 * @return true if the message is inside the limits
+		 */
+		public boolean tryAcquire(int size) {
+			for (int i = 0; i < this.buckets.length; i++) {
+				if (!acquire(this.buckets[i], i % 2 == 0 ? 1 : size)) {
+					for (int j = 0; j < i; j++)
+						release(this.buckets[j], j % 2 == 0 ? 1 : size);
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * @param size - size of the message
+		 * @return nanoseconds to wait until the message is inside every limit
+		 */
+		public long nanosUntilAvailable(int size) {
+			return Math.max(Math.max(waitFor(this.messages, 1), waitFor(this.bytes, size)),
+					Math.max(waitFor(globalMessages, 1), waitFor(globalBytes, size)));
+		}
+
+		public Action getAction() {
+			return action;
+		}
+	}
+
+	private final long messagesPerSecond, bytesPerSecond;
+	private final TokenBucket globalMessages, globalBytes;
+	private final Action action;
+
+	/**
+	 * @param messagesPerSecond - messages per second of each connection
+	 * @param bytesPerSecond - bytes per second of each connection
+	 * @param globalMessagesPerSecond - messages per second of all connections
+	 * @param globalBytesPerSecond - bytes per second of all connections
+	 * @param action - what to do when a limit is reached
+	 */
+	public RateLimiter(long messagesPerSecond, long bytesPerSecond, long globalMessagesPerSecond,
+			long globalBytesPerSecond, Action action) {
+		this.messagesPerSecond = messagesPerSecond;
+		this.bytesPerSecond = bytesPerSecond;
+		this.globalMessages = globalMessagesPerSecond > 0
+				? new TokenBucket(globalMessagesPerSecond, globalMessagesPerSecond) : null;
+		this.globalBytes = globalBytesPerSecond > 0
+				? new TokenBucket(globalBytesPerSecond, globalBytesPerSecond) : null;
+		this.action = action;
+	}
+
+	/**
+	 * @return new buckets for a connection, sharing the global ones
+	 */
+	public Limits newConnectionLimits() {
+		return new Limits();
+	}
+
+	private static boolean acquire(TokenBucket bucket, long tokens) {
+		return bucket == null || bucket.tryAcquire(tokens);
+	}
+
+	private static void release(TokenBucket bucket, long tokens) {
+		if (bucket != null)
+			bucket.release(tokens);
+	}
+
+	private static long waitFor(TokenBucket bucket, long tokens) {
+		return bucket == null ? 0 : bucket.nanosUntilAvailable(tokens);
+	}
+
+}
@@ -0,0 +1,126 @@
+package websocket;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Bounded ring of the last frames sent to a client, indexed by their sequence number.
+ * When a browser reconnects it tells which was the last sequence it has seen, and the
+ * frames after that one can be sent again without resending the whole state.
+ *
+ * The frames are kept in a single ByteBuffer, so it can be allocated off-heap
+ * (direct buffer) when the sessions are big or there are a lot of them.
+ */
+public class ReplayBuffer {
+
+	private final ByteBuffer storage;
+	private final long[] sequences;
+	private final int[] offsets, lengths;
+
+	// head is the slot of the oldest frame, writePos is where the next frame will be stored
+	private int head, count, writePos;
+	private long lastSequence;
+
+	/**
+	 * @param maxMessages - how many frames will be kept at most
+	 * @param maxBytes - how many bytes of frames will be kept at most
+	 * @param offHeap - store the frames in a direct buffer, out of the java heap
+	 */
+	public ReplayBuffer(int maxMessages, int maxBytes, boolean offHeap) {
+		if (maxMessages <= 0 || maxBytes <= 0)
+			throw new IllegalArgumentException("Replay buffer needs room for at least one message");
+
+		this.storage = offHeap ? ByteBuffer.allocateDirect(maxBytes) : ByteBuffer.allocate(maxBytes);
+		this.sequences = new long[maxMessages];
+		this.offsets = new int[maxMessages];
+		this.lengths = new int[maxMessages];
+		this.head = 0;
+		this.count = 0;
+		this.writePos = 0;
+		this.lastSequence = 0;
+	}
+
+	/**
+	 * Keep a frame that has just been sent. The oldest frames are discarded when there
+	 * is no room for it.
+	 * @param sequence - the sequence of the message, it must be greater than the last one
+	 * @param frame - the whole frame, as written on the socket
+	 */
+	public synchronized void append(long sequence, byte[] frame) {
+		int capacity = this.storage.capacity();
+		this.lastSequence = sequence;
+
+		if (frame.length > capacity) {
+			// this frame can't be replayed, so nothing before it can be replayed either
+			this.clear();
+			return;
+		}
+
+		int pos = this.writePos;
+		if (pos + frame.length > capacity)
+			pos = 0;
+
+		// after a wrap the head is past pos, and newer frames can be in the way too: the
+		// newest one in the way is discarded with every frame before it, so the sequences
+		// left are still contiguous
+		int discarded = this.count == this.sequences.length ? 1 : 0;
+		for (int i = 0; i < this.count; i++) {
+			int slot = (this.head + i) % this.sequences.length;
+			if (this.offsets[slot] < pos + frame.length && pos < this.offsets[slot] + this.lengths[slot])
+				discarded = i + 1;
+		}
+		this.head = (this.head + discarded) % this.sequences.length;
+		this.count -= discarded;
+
+		int slot = (this.head + this.count) % this.sequences.length;
+		ByteBuffer dup = this.storage.duplicate();
+		dup.position(pos);
+		dup.put(frame);
+
+		this.sequences[slot] = sequence;
+		this.offsets[slot] = pos;
+		this.lengths[slot] = frame.length;
+		this.count++;
+		this.writePos = pos + frame.length;
+	}
+
+	/**
+	 * Get the frames sent after the given sequence, in the order they were sent.
+	 * @param lastSeenSequence - the last sequence the client has received
+	 * @return the frames to send again, or null if some of them were already discarded
+	 */
+	public synchronized List<byte[]> framesAfter(long lastSeenSequence) {
+		List<byte[]> frames = new ArrayList<byte[]>();
+		if (lastSeenSequence >= this.lastSequence)
+			return frames;
+
+		long oldest = this.count > 0 ? this.sequences[this.head] : this.lastSequence + 1;
+		if (lastSeenSequence < oldest - 1)
+			return null;
+
+		ByteBuffer dup = this.storage.duplicate();
+		for (int i = 0; i < this.count; i++) {
+			int slot = (this.head + i) % this.sequences.length;
+			if (this.sequences[slot] <= lastSeenSequence)
+				continue;
+
+			byte[] frame = new byte[this.lengths[slot]];
+			dup.position(this.offsets[slot]);
+			dup.get(frame);
+			frames.add(frame);
+		}
+		return frames;
+	}
+
+	public synchronized long getLastSequence() {
+		return this.lastSequence;
+	}
+
+	public synchronized void clear() {
+		this.head = 0;
+		this.count = 0;
+		this.writePos = 0;
+	}
+
+}
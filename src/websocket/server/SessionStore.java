@@ -0,0 +1,151 @@
+package websocket;
+
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The replay buffers of the sessions of a JWebSocketRouter, where each connection is a
+ * new JWebSocket instance, so the buffer can't be kept by the instance.
+ *
+ * Each session has an id, created at the handshake of its first connection and sent to
+ * the client in the JWSESSIONID cookie. When the client reconnects with this id (the
+ * cookie, or the session query parameter) and the resume parameter, the new connection
+ * takes the buffer of the session and sends the messages the client has missed.
+ *
+ * A session is kept for timeoutMillis after its connection ends, then it is discarded.
+ * Only one connection can use a session at a time: after a network blip the client
+ * usually reconnects before the server notices that the old connection is dead, so the
+ * new connection takes the session over and the old one is closed.
+ */
+public class SessionStore {
+
+	public static final String COOKIE_NAME = "JWSESSIONID";
+
+	static class Session {
+		private final String id;
+		private final ReplayBuffer buffer;
+		// the connection using the session, null when it is released
+		private JWebSocket connection;
+		private long disconnectedAt;
+
+		Session(String id, ReplayBuffer buffer, JWebSocket connection) {
+			this.id = id;
+			this.buffer = buffer;
+			this.connection = connection;
+		}
+
+		String getId() {
+			return this.id;
+		}
+
+		ReplayBuffer getBuffer() {
+			return this.buffer;
+		}
+	}
+
+	private final ConcurrentHashMap<String, Session> sessions;
+	private final SecureRandom random;
+	private final int maxMessages, maxBytes;
+	private final boolean offHeap;
+	private final long timeoutMillis;
+	private volatile long lastExpire;
+
+	/**
+	 * @param maxMessages - maximum number of messages kept to be replayed, for each session
+	 * @param maxBytes - maximum number of bytes kept to be replayed, for each session
+	 * @param offHeap - keep the messages out of the java heap
+	 * @param timeoutMillis - how long a session is kept after its connection ends
+	 */
+	public SessionStore(int maxMessages, int maxBytes, boolean offHeap, long timeoutMillis) {
+		if (maxMessages <= 0 || maxBytes <= 0)
+			throw new IllegalArgumentException("Replay buffer needs room for at least one message");
+		if (timeoutMillis <= 0)
+			throw new IllegalArgumentException("Session timeout must be positive: " + timeoutMillis);
+
+		this.sessions = new ConcurrentHashMap<String, Session>();
+		this.random = new SecureRandom();
+		this.maxMessages = maxMessages;
+		this.maxBytes = maxBytes;
+		this.offHeap = offHeap;
+		this.timeoutMillis = timeoutMillis;
+	}
+
+	/**
+	 * Take a session for a new connection. If another connection still uses it, that one
+	 * is stale and it is closed (see JWebSocket.sessionTakenOver).
+	 * @param id - the id sent by the client
+	 * @param connection - the new connection
+	 * @return the session, or null if it doesn't exist anymore
+	 */
+	Session attach(String id, JWebSocket connection) {
+		this.expire();
+		Session session = id != null ? this.sessions.get(id) : null;
+		if (session == null)
+			return null;
+		JWebSocket stale;
+		synchronized (session) {
+			stale = session.connection;
+			session.connection = connection;
+		}
+		if (stale != null && stale != connection)
+			stale.sessionTakenOver();
+		return session;
+	}
+
+	/**
+	 * Create a session for a new connection.
+	 * @param connection - the new connection
+	 * @return the session, with a new id and an empty buffer
+	 */
+	Session create(JWebSocket connection) {
+		this.expire();
+		byte[] bytes = new byte[16];
+		this.random.nextBytes(bytes);
+		Session session = new Session(Base64.getUrlEncoder().withoutPadding().encodeToString(bytes),
+				new ReplayBuffer(this.maxMessages, this.maxBytes, this.offHeap), connection);
+		this.sessions.put(session.id, session);
+		return session;
+	}
+
+	/**
+	 * Release the session when its connection ends, it is kept until the timeout. Nothing
+	 * is done when another connection has taken the session over.
+	 */
+	void detach(Session session, JWebSocket connection) {
+		synchronized (session) {
+			if (session.connection != connection)
+				return;
+			session.connection = null;
+			session.disconnectedAt = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * @return how many sessions are kept, connected or not
+	 */
+	public int size() {
+		return this.sessions.size();
+	}
+
+	/**
+	 * Discard the sessions released for longer than the timeout, at most once a second.
+	 */
+	private void expire() {
+		long now = System.currentTimeMillis();
+		if (now - this.lastExpire < 1000)
+			return;
+		this.lastExpire = now;
+
+		Iterator<Session> sessions = this.sessions.values().iterator();
+		while (sessions.hasNext()) {
+			Session session = sessions.next();
+			synchronized (session) {
+				if (session.connection == null && now - session.disconnectedAt >= this.timeoutMillis)
+					sessions.remove();
+			}
+		}
+	}
+
+}
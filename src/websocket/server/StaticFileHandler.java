@@ -0,0 +1,212 @@
+package websocket;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Answers the plain HTTP GETs with the files of a directory, so the page that opens the
+ * WebSocket can be served by the same listener (see JWebSocketRouter.setStaticDirectory).
+ *
+ * Small files are kept in memory. Bigger files are sent with FileChannel.transferTo,
+ * straight from the file to the socket. Every answer has an ETag, and a request with
+ * the same ETag in If-None-Match is answered with 304 Not Modified.
+ */
+public class StaticFileHandler {
+
+	private static final Map<String, String> CONTENT_TYPES = new HashMap<String, String>();
+	static {
+		CONTENT_TYPES.put("html", "text/html; charset=UTF-8");
+		CONTENT_TYPES.put("htm", "text/html; charset=UTF-8");
+		CONTENT_TYPES.put("js", "application/javascript; charset=UTF-8");
+		CONTENT_TYPES.put("css", "text/css; charset=UTF-8");
+		CONTENT_TYPES.put("json", "application/json; charset=UTF-8");
+		CONTENT_TYPES.put("map", "application/json; charset=UTF-8");
+		CONTENT_TYPES.put("txt", "text/plain; charset=UTF-8");
+		CONTENT_TYPES.put("svg", "image/svg+xml");
+		CONTENT_TYPES.put("png", "image/png");
+		CONTENT_TYPES.put("jpg", "image/jpeg");
+		CONTENT_TYPES.put("jpeg", "image/jpeg");
+		CONTENT_TYPES.put("gif", "image/gif");
+		CONTENT_TYPES.put("ico", "image/x-icon");
+	}
+
+	private static class CachedFile {
+		final long lastModified, length;
+		final String etag;
+		final byte[] content;
+
+		CachedFile(long lastModified, long length, String etag, byte[] content) {
+			this.lastModified = lastModified;
+			this.length = length;
+			this.etag = etag;
+			this.content = content;
+		}
+	}
+
+	private final File root;
+	private final int maxCachedFileSize;
+	private final long maxCacheSize;
+	private final Map<String, CachedFile> cache;
+	private final AtomicLong cacheSize;
+
+	/**
+	 * @param root - the directory with the files
+	 * @param maxCachedFileSize - files up to this size are kept in memory
+	 * @param maxCacheSize - maximum amount of bytes kept in memory
+	 * @throws IOException - if the directory doesn't exist
+	 */
+	public StaticFileHandler(File root, int maxCachedFileSize, long maxCacheSize) throws IOException {
+		if (!root.isDirectory())
+			throw new IOException("Static directory not found: " + root);
+
+		this.root = root.getCanonicalFile();
+		this.maxCachedFileSize = maxCachedFileSize;
+		this.maxCacheSize = maxCacheSize;
+		this.cache = new ConcurrentHashMap<String, CachedFile>();
+		this.cacheSize = new AtomicLong();
+	}
+
+	/**
+	 * Answer the request.
+	 * @param channel - the socket of the client, in blocking mode
+	 * @param request - the request
+	 * @return true if the connection must be kept alive for the next request
+	 * @throws IOException - when the socket fails
+	 * @throws HttpRequest.BadRequestException - when the path is not a valid file name
+	 */
+	public boolean serve(SocketChannel channel, HttpRequest request) throws IOException {
+		// the body of the request is not read, it would be parsed as the next request
+		boolean keepAlive = isKeepAlive(request) && !hasBody(request);
+		boolean head = "HEAD".equals(request.getMethod());
+		if (!head && !"GET".equals(request.getMethod())) {
+			this.respond(channel, "405 Method Not Allowed", "Allow: GET, HEAD\r\n", keepAlive);
+			return keepAlive;
+		}
+
+		File file = this.resolve(request.getPath());
+		if (file == null) {
+			this.respond(channel, "404 Not Found", "", keepAlive);
+			return keepAlive;
+		}
+
+		long lastModified = file.lastModified(), length = file.length();
+		String etag = "\"" + Long.toHexString(lastModified) + "-" + Long.toHexString(length) + "\"";
+		if (etag.equals(request.getHeader("If-None-Match"))) {
+			this.respond(channel, "304 Not Modified", "ETag: " + etag + "\r\n", keepAlive);
+			return keepAlive;
+		}
+
+		String headers = "HTTP/1.1 200 OK\r\n" + "Content-Type: " + contentType(file) + "\r\n"
+				+ "Content-Length: " + length + "\r\n" + "ETag: " + etag + "\r\n"
+				+ "Connection: " + (keepAlive ? "keep-alive" : "close") + "\r\n\r\n";
+		ByteBuffer header = ByteBuffer.wrap(headers.getBytes("UTF-8"));
+
+		if (length <= this.maxCachedFileSize) {
+			CachedFile cached = this.cached(file, lastModified, length, etag);
+			if (cached != null) {
+				ByteBuffer body = ByteBuffer.wrap(head ? new byte[0] : cached.content);
+				while (header.hasRemaining() || body.hasRemaining())
+					channel.write(new ByteBuffer[] { header, body });
+				return keepAlive;
+			}
+		}
+
+		while (header.hasRemaining())
+			channel.write(header);
+		if (!head) {
+			try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel content = raf.getChannel()) {
+				long position = 0;
+				while (position < length) {
+					long sent = content.transferTo(position, length - position, channel);
+					if (sent <= 0 && content.size() < length)
+						throw new IOException("File truncated while being sent: " + file);
+					position += sent;
+				}
+			}
+		}
+		return keepAlive;
+	}
+
+	private CachedFile cached(File file, long lastModified, long length, String etag) throws IOException {
+		String key = file.getPath();
+		CachedFile cached = this.cache.get(key);
+		if (cached != null && cached.lastModified == lastModified && cached.length == length)
+			return cached;
+
+		if (cached != null && this.cache.remove(key, cached))
+			this.cacheSize.addAndGet(-cached.length);
+
+		if (this.cacheSize.addAndGet(length) > this.maxCacheSize) {
+			this.cacheSize.addAndGet(-length);
+			return null;
+		}
+
+		byte[] content = Files.readAllBytes(file.toPath());
+		if (content.length != length) {
+			// changed while it was read, don't keep it
+			this.cacheSize.addAndGet(-length);
+			return null;
+		}
+		cached = new CachedFile(lastModified, length, etag, content);
+		if (this.cache.putIfAbsent(key, cached) != null)
+			this.cacheSize.addAndGet(-length);
+		return cached;
+	}
+
+	/**
+	 * @return the file of the path, or null if it doesn't exist or is out of the root directory
+	 * @throws HttpRequest.BadRequestException - when the path is not a valid file name (a %00...)
+	 */
+	private File resolve(String path) throws IOException {
+		File file;
+		try {
+			file = new File(this.root, HttpRequest.decodePath(path)).getCanonicalFile();
+		} catch (HttpRequest.BadRequestException e) {
+			throw e;
+		} catch (IOException e) {
+			throw new HttpRequest.BadRequestException("Invalid path: " + path);
+		}
+		if (!file.equals(this.root) && !file.getPath().startsWith(this.root.getPath() + File.separator))
+			return null;
+		if (file.isDirectory())
+			file = new File(file, "index.html");
+		return file.isFile() ? file : null;
+	}
+
+	private void respond(SocketChannel channel, String status, String headers, boolean keepAlive)
+			throws IOException {
+		ByteBuffer response = ByteBuffer.wrap(("HTTP/1.1 " + status + "\r\n" + headers + "Content-Length: 0\r\n"
+				+ "Connection: " + (keepAlive ? "keep-alive" : "close") + "\r\n\r\n").getBytes("UTF-8"));
+		while (response.hasRemaining())
+			channel.write(response);
+	}
+
+	private static boolean isKeepAlive(HttpRequest request) {
+		String connection = request.getHeader("Connection");
+		if ("HTTP/1.0".equals(request.getVersion()))
+			return connection != null && connection.equalsIgnoreCase("keep-alive");
+		return connection == null || !connection.equalsIgnoreCase("close");
+	}
+
+	private static boolean hasBody(HttpRequest request) {
+		String length = request.getHeader("Content-Length");
+		return (length != null && !length.trim().equals("0")) || request.getHeader("Transfer-Encoding") != null;
+	}
+
+	private static String contentType(File file) {
+		String name = file.getName();
+		int dot = name.lastIndexOf('.');
+		String type = dot >= 0 ? CONTENT_TYPES.get(name.substring(dot + 1).toLowerCase()) : null;
+		return type != null ? type : "application/octet-stream";
+	}
+
+}
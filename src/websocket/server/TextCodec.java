@@ -0,0 +1,67 @@
+package websocket;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Codec of plain UTF-8 text messages, for subprotocols that are parsed by hand (or by
+ * a JSON library) but still want to be negotiated. It decodes straight from the payload
+ * and rejects invalid UTF-8, as RFC 6455 asks for text frames.
+ */
+public class TextCodec implements MessageCodec<String> {
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	// U+FFFD in UTF-8
+	private static final byte[] REPLACEMENT = { (byte) 0xEF, (byte) 0xBF, (byte) 0xBD };
+
+	private final String subprotocol;
+
+	public TextCodec(String subprotocol) {
+		this.subprotocol = subprotocol;
+	}
+
+	@Override
+	public String getSubprotocol() {
+		return this.subprotocol;
+	}
+
+	@Override
+	public boolean isText() {
+		return true;
+	}
+
+	@Override
+	public String decode(ByteBuffer payload) throws IOException {
+		CharsetDecoder decoder = UTF_8.newDecoder().onMalformedInput(CodingErrorAction.REPORT)
+				.onUnmappableCharacter(CodingErrorAction.REPORT);
+		try {
+			return decoder.decode(payload).toString();
+		} catch (CharacterCodingException e) {
+			throw new IOException("Invalid UTF-8 in text message", e);
+		}
+	}
+
+	/**
+	 * A lone surrogate in the message is sent as U+FFFD, the replacement character, so the
+	 * payload is always valid UTF-8.
+	 */
+	@Override
+	public void encode(String message, ByteBuffer out) throws BufferOverflowException {
+		CharsetEncoder encoder = UTF_8.newEncoder().onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE).replaceWith(REPLACEMENT);
+		CoderResult result = encoder.encode(CharBuffer.wrap(message), out, true);
+		if (!result.isOverflow())
+			result = encoder.flush(out);
+		if (result.isOverflow())
+			throw new BufferOverflowException();
+	}
+
+}
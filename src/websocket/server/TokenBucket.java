@@ -0,0 +1,83 @@
+package websocket;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free token bucket.
+ *
+ * Instead of keeping the amount of tokens, it keeps the instant (System.nanoTime) when the
+ * bucket will be full again. Taking n tokens moves this instant n * (1s / rate) ahead, and it
+ * is refused when it would go further than the burst allows. So only one compare-and-set
+ * is needed, and the bucket can be shared by many threads.
+ */
+public class TokenBucket {
+
+	private static final long NANOS_PER_SECOND = 1000000000L;
+
+	private final long ratePerSecond, burstNanos;
+	private final AtomicLong fullAt;
+
+	/**
+	 * @param ratePerSecond - how many tokens are added to the bucket each second
+	 * @param burst - maximum amount of tokens the bucket holds
+	 */
+	public TokenBucket(long ratePerSecond, long burst) {
+		if (ratePerSecond <= 0 || burst <= 0)
+			throw new IllegalArgumentException("Rate and burst must be positive");
+
+		this.ratePerSecond = ratePerSecond;
+		this.burstNanos = costOf(burst, ratePerSecond);
+		this.fullAt = new AtomicLong(System.nanoTime());
+	}
+
+	/**
+	 * Take the tokens if they are available.
+	 * @param tokens - amount of tokens to take
+	 * @return true if the tokens were taken
+	 */
+	public boolean tryAcquire(long tokens) {
+		long cost = costOf(tokens, this.ratePerSecond);
+		while (true) {
+			long now = System.nanoTime();
+			long current = this.fullAt.get();
+			long start = current - now < 0 ? now : current;
+			long next = start + cost;
+
+			// a request bigger than the burst is accepted only when the bucket is full
+			if (next - now > Math.max(cost, this.burstNanos))
+				return false;
+
+			if (this.fullAt.compareAndSet(current, next))
+				return true;
+		}
+	}
+
+	/**
+	 * Give back tokens taken by tryAcquire, when what they were taken for is refused.
+	 * @param tokens - amount of tokens to give back
+	 */
+	public void release(long tokens) {
+		this.fullAt.addAndGet(-costOf(tokens, this.ratePerSecond));
+	}
+
+	/**
+	 * @param tokens - amount of tokens that will be taken
+	 * @return how many nanoseconds to wait until the tokens are available, 0 if they are already
+	 */
+	public long nanosUntilAvailable(long tokens) {
+		long now = System.nanoTime();
+		long current = this.fullAt.get();
+		long start = current - now < 0 ? now : current;
+		long cost = costOf(tokens, this.ratePerSecond);
+		long wait = start + cost - now - Math.max(cost, this.burstNanos);
+		return wait > 0 ? wait : 0;
+	}
+
+	private static long costOf(long tokens, long ratePerSecond) {
+		// avoid overflow with huge amounts of tokens
+		if (tokens > Long.MAX_VALUE / NANOS_PER_SECOND)
+			return (tokens / ratePerSecond) * NANOS_PER_SECOND;
+		return tokens * NANOS_PER_SECOND / ratePerSecond;
+	}
+
+}